@@ -1,6 +1,16 @@
 import java.util.function.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
 /**
  * Graphs are arbitrary collections of nodes or vertices, arbitrarily connected through edges.
@@ -8,200 +18,4994 @@ import java.io.IOException;
  * In graphs we care about moving from a node to another
  */
 public class Graphs {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, javax.management.JMException, InterruptedException {
         GraphDemo demo = new GraphDemo();
         demo.runTests();
+        if (args.length > 0 && args[0].equals("throughput")) {
+            demo.runThroughputTest();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("queries")) {
+            demo.runQueryLoadTest();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            // java graphs.java bench [largest power of ten] [results.json]
+            GraphBenchmark benchmark = new GraphBenchmark();
+            benchmark.runAll(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+            if (args.length > 2)
+                Files.writeString(Paths.get(args[2]), benchmark.toJson());
+            return;
+        }
         demo.runDemo();
     }
-}
-class Node {
-    String key;
-    List<String> edgesToNeighbors;
     
-    public Node(String key) {
-        this.key = key;
-        this.edgesToNeighbors = new ArrayList<String>();
+    /**
+     * What a GraphMetrics exposes over JMX; the latency maps are keyed by operation name.
+     * JMX only accepts public interfaces, and this file can only have one public top-level type,
+     * so it lives here rather than next to GraphMetrics.
+     */
+    public interface GraphMetricsMXBean {
+        long getNodesVisited();
+        long getEdgesScanned();
+        long getRevisits();
+        long getNodeLookups();
+        long getFrontierPeak();
+        long getConsumerNanos();
+        Map<String, Long> getOperationCounts();
+        Map<String, Long> getMedianNanos();
+        Map<String, Long> getP99Nanos();
+        void reset();
+    }
+}
+class Node {
+    String key;
+    List<String> edgesToNeighbors;
+    // weights of the edges, parallel to edgesToNeighbors, null while every edge weighs 1
+    double[] edgeWeights;
+    
+    public Node(String key) {
+        this.key = key;
+        this.edgesToNeighbors = new ArrayList<String>();
+    }
+    
+    public double weightOf(int edge) {
+        if (edgeWeights == null || edge >= edgeWeights.length)
+            return 1.0;
+        return edgeWeights[edge];
+    }
+    
+    public void setWeight(int edge, double weight) {
+        if (edgeWeights == null) {
+            if (weight == 1.0)
+                return;
+            edgeWeights = new double[Math.max(4, edgesToNeighbors.size())];
+            Arrays.fill(edgeWeights, 1.0);
+        } else if (edge >= edgeWeights.length) {
+            int oldLength = edgeWeights.length;
+            edgeWeights = Arrays.copyOf(edgeWeights, Math.max(edge + 1, oldLength * 2));
+            Arrays.fill(edgeWeights, oldLength, edgeWeights.length, 1.0);
+        }
+        edgeWeights[edge] = weight;
+    }
+    
+    /**
+     * Removes the edges to all the given keys, in a single pass.
+     */
+    public void removeEdges(Set<String> toKeys) {
+        int kept = 0;
+        for (int edge = 0; edge < edgesToNeighbors.size(); edge++) {
+            String toKey = edgesToNeighbors.get(edge);
+            if (toKeys.contains(toKey))
+                continue;
+            
+            edgesToNeighbors.set(kept, toKey);
+            if (edgeWeights != null && edge < edgeWeights.length)
+                edgeWeights[kept] = edgeWeights[edge];
+            kept++;
+        }
+        edgesToNeighbors.subList(kept, edgesToNeighbors.size()).clear();
+    }
+    
+    public void removeEdge(String toKey) {
+        int edge = edgesToNeighbors.indexOf(toKey);
+        if (edge < 0)
+            return;
+        
+        edgesToNeighbors.remove(edge);
+        if (edgeWeights != null && edge < edgeWeights.length - 1)
+            System.arraycopy(edgeWeights, edge + 1, edgeWeights, edge, edgeWeights.length - edge - 1);
+    }
+}
+interface Graph {
+    public void clear();
+    public void addNode(Node node);
+    public void addEdge(String fromKey, String toKey);
+    public void addEdge(String fromKey, String toKey, double weight);
+    public void removeNode(String key);
+    
+    public void depthFirstSearch(Node start, Consumer<Node> consumer);
+    public void breadthFirstSearch(Node start, Consumer<Node> consumer);
+    public Stream<Node> depthFirstStream(Node start);
+    public Stream<Node> breadthFirstStream(Node start);
+    public Stream<Node> reachableStream(Node start);
+    
+    public List<Node> findPath(Node source, Node target);
+    public boolean isAcyclic();
+    
+    public void fromAdjacencyMatrix(boolean[][] matrix);
+    public boolean[][] toAdjacencyMatrix();
+    public Graph invertDirections();
+    public List<Node> topologicalOrder();
+    public List<List<Node>> stronglyConnectedComponents();
+    public Graph condensation();
+    public int numberOfTrees();
+    
+    public void print();
+    public String debugString();
+}
+class GraphImpl implements Graph, Adjacency {
+    static final int[] NO_EDGES = new int[0];
+    
+    // keys get dense ids in the order they are added, and adjacency is kept as ids.
+    // Node objects are only a facade over them, created the first time they are asked for.
+    SymbolTable symbols = new SymbolTable();
+    Node[] nodeById = new Node[16];
+    // out[i] == null for ids of removed nodes
+    int[][] out = new int[16][];
+    int[] outDegree = new int[16];
+    // incoming edges, so removing a node only touches its own edges
+    int[][] in = new int[16][];
+    int[] inDegree = new int[16];
+    // parallel to out, null for nodes whose edges all weigh 1
+    double[][] weights = new double[16][];
+    int nodeCount;
+    // islands, ignoring edge directions; null after removals until asked for again
+    UnionFind components = new UnionFind(0);
+    // null unless metrics were asked for, so nothing is counted or allocated by default
+    GraphMetrics metrics;
+    // dropped by changes that could make it wrong, rebuilt on the next query
+    ReachabilityIndex reachability;
+    // the last snapshot taken, dropped by any change and retaken by the next freeze()
+    private CsrGraph frozen;
+    
+    Collection<Node> nodes = new AbstractCollection<Node>() {
+        public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                int next = liveFrom(0);
+                
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+                
+                public Node next() {
+                    if (next < 0)
+                        throw new NoSuchElementException();
+                    Node node = node(next);
+                    next = liveFrom(next + 1);
+                    return node;
+                }
+            };
+        }
+        
+        public int size() {
+            return nodeCount;
+        }
+    };
+    
+    /**
+     * The edges of a node, as keys, read straight from the graph's adjacency.
+     */
+    private class NeighborList extends AbstractList<String> implements RandomAccess {
+        final int id;
+        
+        NeighborList(int id) {
+            this.id = id;
+        }
+        
+        public String get(int index) {
+            if (index >= size())
+                throw new IndexOutOfBoundsException(index);
+            return keyOf(out[id][index]);
+        }
+        
+        public int size() {
+            return out[id] == null ? 0 : outDegree[id];
+        }
+    }
+    
+    /**
+     * A graph with the nodes, edges and weights of the snapshot, in the same order.
+     */
+    public static GraphImpl of(CsrGraph csr) {
+        GraphImpl graph = new GraphImpl();
+        for (int i = 0; i < csr.nodeCount(); i++) {
+            int id = graph.ensureNode(csr.node(i).key);
+            graph.out[id] = Arrays.copyOfRange(csr.targets, csr.offsets[i], csr.offsets[i + 1]);
+            graph.outDegree[id] = graph.out[id].length;
+            graph.in[id] = Arrays.copyOfRange(csr.sources, csr.inOffsets[i], csr.inOffsets[i + 1]);
+            graph.inDegree[id] = graph.in[id].length;
+            if (csr.weights != null)
+                graph.weights[id] = Arrays.copyOfRange(csr.weights, csr.offsets[i], csr.offsets[i + 1]);
+        }
+        // islands are counted in parallel the first time they are asked for
+        graph.components = null;
+        return graph;
+    }
+    
+    public void clear() {
+        for (int id = 0; id < symbols.size(); id++)
+            detach(id);
+        symbols = new SymbolTable();
+        nodeById = new Node[16];
+        out = new int[16][];
+        outDegree = new int[16];
+        in = new int[16][];
+        inDegree = new int[16];
+        weights = new double[16][];
+        nodeCount = 0;
+        components = new UnionFind(0);
+        reachability = null;
+        frozen = null;
+    }
+    
+    /**
+     * Adds the node along with its edges. From then on the graph owns the edges,
+     * and the node's edgesToNeighbors becomes a read only view of them,
+     * until removeNode or clear hands the node back with its last edges and weights.
+     */
+    public void addNode(Node node) {
+        int id = symbols.idOf(node.key);
+        if (id >= 0 && out[id] != null)
+            return;
+        
+        List<String> edges = node.edgesToNeighbors;
+        double[] edgeWeights = node.edgeWeights;
+        id = ensureNode(node.key);
+        nodeById[id] = node;
+        frozen = null;
+        node.edgesToNeighbors = new NeighborList(id);
+        node.edgeWeights = null;
+        for (int i = 0; i < edges.size(); i++) {
+            double weight = edgeWeights == null || i >= edgeWeights.length ? 1.0 : edgeWeights[i];
+            addEdge(node.key, edges.get(i), weight);
+        }
+    }
+    
+    public void addEdge(String fromKey, String toKey) {
+        addEdge(fromKey, toKey, 1.0);
+    }
+    
+    public void addEdge(String fromKey, String toKey, double weight) {
+        // get nodes, if none exists, create them
+        int from = ensureNode(fromKey);
+        int to = ensureNode(toKey);
+        frozen = null;
+        
+        // adding an existing edge again just updates its weight
+        int edge = indexOf(out[from], outDegree[from], to);
+        if (edge < 0) {
+            edge = outDegree[from];
+            out[from] = append(out[from], outDegree[from]++, to);
+            in[to] = append(in[to], inDegree[to]++, from);
+            if (components != null)
+                components.union(from, to);
+            // an edge between nodes already connected that way changes no answer
+            if (reachability != null && !reachable(from, to))
+                reachability = null;
+        }
+        setWeight(from, edge, weight);
+    }
+    
+    /**
+     * Adds the edge in both directions, which is how undirected graphs are stored.
+     */
+    public void addUndirectedEdge(String aKey, String bKey, double weight) {
+        addEdge(aKey, bKey, weight);
+        addEdge(bKey, aKey, weight);
+    }
+    
+    private int ensureNode(String key) {
+        int id = symbols.intern(key);
+        if (id >= out.length) {
+            int capacity = Math.max(id + 1, out.length * 2);
+            nodeById = Arrays.copyOf(nodeById, capacity);
+            out = Arrays.copyOf(out, capacity);
+            outDegree = Arrays.copyOf(outDegree, capacity);
+            in = Arrays.copyOf(in, capacity);
+            inDegree = Arrays.copyOf(inDegree, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        if (out[id] == null) {
+            out[id] = NO_EDGES;
+            in[id] = NO_EDGES;
+            nodeCount++;
+            frozen = null;
+        }
+        if (components != null && id == components.size())
+            components.add();
+        return id;
+    }
+    
+    private static int indexOf(int[] ids, int length, int id) {
+        for (int i = 0; i < length; i++) {
+            if (ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+    
+    private static int[] append(int[] ids, int length, int id) {
+        if (length == ids.length)
+            ids = Arrays.copyOf(ids, Math.max(4, length * 2));
+        ids[length] = id;
+        return ids;
+    }
+    
+    private void setWeight(int from, int edge, double weight) {
+        double[] w = weights[from];
+        if (w == null) {
+            if (weight == 1.0)
+                return;
+            w = new double[out[from].length];
+            Arrays.fill(w, 1.0);
+        } else if (edge >= w.length) {
+            int oldLength = w.length;
+            w = Arrays.copyOf(w, out[from].length);
+            Arrays.fill(w, oldLength, w.length, 1.0);
+        }
+        w[edge] = weight;
+        weights[from] = w;
+    }
+    
+    /**
+     * The weight of the edge, or NaN if there is no such edge.
+     */
+    public double weight(String fromKey, String toKey) {
+        int from = liveId(fromKey);
+        int to = liveId(toKey);
+        int edge = from < 0 || to < 0 ? -1 : indexOf(out[from], outDegree[from], to);
+        if (edge < 0)
+            return Double.NaN;
+        return weights[from] == null || edge >= weights[from].length ? 1.0 : weights[from][edge];
+    }
+    
+    /**
+     * Removes the node and every edge to or from it, in amortized O(in + out degree).
+     */
+    public void removeNode(String key) {
+        int id = liveId(key);
+        if (id < 0)
+            return;
+        
+        for (int i = 0; i < inDegree[id]; i++) {
+            int from = in[id][i];
+            if (from != id)
+                removeFromOut(from, id);
+        }
+        for (int i = 0; i < outDegree[id]; i++) {
+            int to = out[id][i];
+            if (to != id)
+                inDegree[to] = removeId(in[to], inDegree[to], id);
+        }
+        drop(id);
+        compactIfSparse();
+    }
+    
+    /**
+     * Removes many nodes at once. Edges between removed nodes are not unlinked one by one,
+     * and every surviving neighbor gets its edge lists compacted just once.
+     */
+    public void removeNodes(Collection<String> keys) {
+        IntHashSet doomed = new IntHashSet();
+        int[] doomedIds = new int[keys.size()];
+        int doomedCount = 0;
+        for (String key: keys) {
+            int id = liveId(key);
+            if (id >= 0 && doomed.add(id))
+                doomedIds[doomedCount++] = id;
+        }
+        
+        // surviving neighbors, each listed once per side whose edges need compacting
+        IntHashSet affectedOut = new IntHashSet();
+        IntHashSet affectedIn = new IntHashSet();
+        int[] outIds = NO_EDGES;
+        int[] inIds = NO_EDGES;
+        int outCount = 0;
+        int inCount = 0;
+        for (int d = 0; d < doomedCount; d++) {
+            int id = doomedIds[d];
+            for (int i = 0; i < inDegree[id]; i++) {
+                int from = in[id][i];
+                if (!doomed.contains(from) && affectedOut.add(from))
+                    outIds = append(outIds, outCount++, from);
+            }
+            for (int i = 0; i < outDegree[id]; i++) {
+                int to = out[id][i];
+                if (!doomed.contains(to) && affectedIn.add(to))
+                    inIds = append(inIds, inCount++, to);
+            }
+        }
+        
+        for (int i = 0; i < outCount; i++)
+            compactOut(outIds[i], doomed);
+        for (int i = 0; i < inCount; i++)
+            compactIn(inIds[i], doomed);
+        for (int d = 0; d < doomedCount; d++)
+            drop(doomedIds[d]);
+        compactIfSparse();
+    }
+    
+    private void removeFromOut(int from, int to) {
+        int edge = indexOf(out[from], outDegree[from], to);
+        int moved = outDegree[from] - edge - 1;
+        System.arraycopy(out[from], edge + 1, out[from], edge, moved);
+        double[] w = weights[from];
+        if (w != null && edge < w.length)
+            System.arraycopy(w, edge + 1, w, edge, Math.min(moved, w.length - edge - 1));
+        outDegree[from]--;
+    }
+    
+    private static int removeId(int[] ids, int length, int id) {
+        int i = indexOf(ids, length, id);
+        System.arraycopy(ids, i + 1, ids, i, length - i - 1);
+        return length - 1;
+    }
+    
+    private void compactOut(int from, IntHashSet doomed) {
+        int[] edges = out[from];
+        double[] w = weights[from];
+        int kept = 0;
+        for (int edge = 0; edge < outDegree[from]; edge++) {
+            if (doomed.contains(edges[edge]))
+                continue;
+            edges[kept] = edges[edge];
+            if (w != null && edge < w.length)
+                w[kept] = w[edge];
+            kept++;
+        }
+        outDegree[from] = kept;
+    }
+    
+    private void compactIn(int to, IntHashSet doomed) {
+        int[] edges = in[to];
+        int kept = 0;
+        for (int edge = 0; edge < inDegree[to]; edge++) {
+            if (!doomed.contains(edges[edge]))
+                edges[kept++] = edges[edge];
+        }
+        inDegree[to] = kept;
+    }
+    
+    private void drop(int id) {
+        detach(id);
+        nodeById[id] = null;
+        out[id] = null;
+        in[id] = null;
+        outDegree[id] = 0;
+        inDegree[id] = 0;
+        weights[id] = null;
+        nodeCount--;
+        components = null;
+        reachability = null;
+        frozen = null;
+    }
+    
+    /**
+     * Ids of removed nodes stay reserved, so that re-adding a key is cheap. Once they
+     * outnumber the live ones, the live nodes are renumbered densely, in the same order,
+     * which keeps the per-id arrays and every scan over ids in proportion to the live graph.
+     */
+    private void compactIfSparse() {
+        int bound = symbols.size();
+        if (bound - nodeCount <= Math.max(16, nodeCount))
+            return;
+        
+        int[] renumbered = new int[bound];
+        SymbolTable liveSymbols = new SymbolTable();
+        for (int id = 0; id < bound; id++)
+            renumbered[id] = out[id] == null ? -1 : liveSymbols.intern(keyOf(id));
+        
+        int capacity = Math.max(16, nodeCount);
+        Node[] liveNodes = new Node[capacity];
+        int[][] liveOut = new int[capacity][];
+        int[] liveOutDegree = new int[capacity];
+        int[][] liveIn = new int[capacity][];
+        int[] liveInDegree = new int[capacity];
+        double[][] liveWeights = new double[capacity][];
+        for (int id = 0; id < bound; id++) {
+            int n = renumbered[id];
+            if (n < 0)
+                continue;
+            for (int i = 0; i < outDegree[id]; i++)
+                out[id][i] = renumbered[out[id][i]];
+            for (int i = 0; i < inDegree[id]; i++)
+                in[id][i] = renumbered[in[id][i]];
+            liveOut[n] = out[id];
+            liveOutDegree[n] = outDegree[id];
+            liveIn[n] = in[id];
+            liveInDegree[n] = inDegree[id];
+            liveWeights[n] = weights[id];
+            liveNodes[n] = nodeById[id];
+            // the views handed out keep working, now over the new id
+            if (liveNodes[n] != null)
+                liveNodes[n].edgesToNeighbors = new NeighborList(n);
+        }
+        
+        symbols = liveSymbols;
+        nodeById = liveNodes;
+        out = liveOut;
+        outDegree = liveOutDegree;
+        in = liveIn;
+        inDegree = liveInDegree;
+        weights = liveWeights;
+        components = null;
+        reachability = null;
+        frozen = null;
+    }
+    
+    /**
+     * A node object kept by the caller gets its last edges and weights back, as plain mutable fields.
+     */
+    private void detach(int id) {
+        Node node = nodeById[id];
+        if (node == null)
+            return;
+        node.edgesToNeighbors = new ArrayList<String>(node.edgesToNeighbors);
+        node.edgeWeights = weights[id] == null ? null : Arrays.copyOf(weights[id], Math.min(weights[id].length, outDegree[id]));
+    }
+    
+    /**
+     * The node with this key, or null if there is none.
+     */
+    public Node getNode(String key) {
+        if (metrics != null)
+            metrics.nodeLookups.increment();
+        int id = liveId(key);
+        return id < 0 ? null : node(id);
+    }
+    
+    /**
+     * Starts counting traversals and lookups into the given metrics, or stops when null.
+     */
+    public void setMetrics(GraphMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    private int liveId(String key) {
+        int id = symbols.idOf(key);
+        return id >= 0 && out[id] != null ? id : -1;
+    }
+    
+    private int liveFrom(int id) {
+        while (id < symbols.size() && out[id] == null)
+            id++;
+        return id < symbols.size() ? id : -1;
+    }
+    
+    private String keyOf(int id) {
+        return nodeById[id] != null ? nodeById[id].key : symbols.key(id);
+    }
+    
+    public Node node(int id) {
+        Node node = nodeById[id];
+        if (node == null) {
+            node = new Node(symbols.key(id));
+            node.edgesToNeighbors = new NeighborList(id);
+            nodeById[id] = node;
+        }
+        return node;
+    }
+    
+    public int idBound() {
+        return symbols.size();
+    }
+    
+    public int degree(int id) {
+        return outDegree[id];
+    }
+    
+    public int neighbor(int id, int index) {
+        return out[id][index];
+    }
+    
+    int requireId(Node node) {
+        int id = liveId(node.key);
+        if (id < 0)
+            throw new RuntimeException("Node keyed \"" + node.key + "\" not found");
+        return id;
+    }
+    
+    public void print() {
+        for (int id = liveFrom(0); id >= 0; id = liveFrom(id + 1)) {
+            System.out.println("" + keyOf(id) + ":[" + String.join(",", neighborKeys(id)) + "]");
+        }
+    }
+    
+    public String debugString() {
+        List<String> nodesStrings = new ArrayList<String>();
+        for (int id = liveFrom(0); id >= 0; id = liveFrom(id + 1)) {
+            nodesStrings.add(keyOf(id) + "[" + String.join(",", neighborKeys(id)) + "]");
+        }
+        return String.join(" ", nodesStrings);
+    }
+    
+    private List<String> neighborKeys(int id) {
+        List<String> keys = new ArrayList<String>(outDegree[id]);
+        for (int i = 0; i < outDegree[id]; i++)
+            keys.add(keyOf(out[id][i]));
+        return keys;
+    }
+    
+    public void depthFirstSearch(Node start, Consumer<Node> consumer) {
+        if (metrics == null) {
+            search(requireId(start), consumer, true, null);
+            return;
+        }
+        long started = System.nanoTime();
+        search(requireId(start), metrics.timed(consumer), true, metrics);
+        metrics.record("depthFirstSearch", System.nanoTime() - started);
+    }
+    
+    public void breadthFirstSearch(Node start, Consumer<Node> consumer) {
+        if (metrics == null) {
+            search(requireId(start), consumer, false, null);
+            return;
+        }
+        long started = System.nanoTime();
+        search(requireId(start), metrics.timed(consumer), false, metrics);
+        metrics.record("breadthFirstSearch", System.nanoTime() - started);
+    }
+    
+    /**
+     * Visits everything reachable from first, taking the frontier from the back as a stack
+     * when depth first, or from the front as a queue otherwise.
+     */
+    private void search(int first, Consumer<Node> consumer, boolean depthFirst, GraphMetrics metrics) {
+        int[] frontier = new int[nodeCount];
+        boolean[] visited = new boolean[symbols.size()];
+        int head = 0;
+        int tail = 0;
+        int reached = 1;
+        long scanned = 0;
+        long revisits = 0;
+        int peak = 1;
+        
+        frontier[tail++] = first;
+        visited[first] = true;
+        while (head < tail) {
+            // grab current from the frontier, call consumer
+            int current = depthFirst ? frontier[--tail] : frontier[head++];
+            consumer.accept(node(current));
+            
+            // put unvisited neighbors on the frontier, to be visited later.
+            scanned += outDegree[current];
+            for (int i = 0; i < outDegree[current]; i++) {
+                int neighbor = out[current][i];
+                if (visited[neighbor]) {
+                    revisits++;
+                    continue;
+                }
+                
+                frontier[tail++] = neighbor;
+                visited[neighbor] = true;
+                reached++;
+            }
+            peak = Math.max(peak, tail - head);
+        }
+        
+        if (metrics != null)
+            metrics.traversed(reached, scanned, revisits, peak);
+    }
+    
+    public Stream<Node> depthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), true);
+    }
+    
+    public Stream<Node> breadthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), false);
+    }
+    
+    /**
+     * Reachable nodes in no particular order, only sequentially; freeze() for parallel streams.
+     */
+    public Stream<Node> reachableStream(Node start) {
+        return ReachableSpliterator.stream(this, requireId(start), false);
+    }
+    
+    /**
+     * Shortest path by number of edges, answered from the snapshot freeze() keeps
+     * until the graph changes, so repeated queries on an unchanged graph share one.
+     */
+    public List<Node> findPath(Node source, Node target) {
+        if (metrics == null)
+            return freeze().findPath(source, target);
+        long started = System.nanoTime();
+        List<Node> path = freeze().findPath(source, target);
+        metrics.record("findPath", System.nanoTime() - started);
+        return path;
+    }
+    
+    public List<Node> shortestPath(Node source, Node target) {
+        return freeze().shortestPath(source, target);
+    }
+    
+    public boolean isAcyclic() {
+        return freeze().isAcyclic();
+    }
+    
+    /**
+     * Replaces the contents of the graph, nodes get keyed by their index, "0" to "n-1".
+     */
+    public void fromAdjacencyMatrix(boolean[][] matrix) {
+        clear();
+        CsrGraph csr = BitMatrix.of(matrix).toCsr();
+        for (int i = 0; i < csr.nodeCount(); i++)
+            ensureNode(csr.node(i).key);
+        for (int i = 0; i < csr.nodeCount(); i++) {
+            for (int e = csr.offsets[i]; e < csr.offsets[i + 1]; e++)
+                addEdge(csr.node(i).key, csr.node(csr.targets[e]).key);
+        }
+    }
+    
+    public boolean[][] toAdjacencyMatrix() {
+        return toBitMatrix().toBooleans();
+    }
+    
+    /**
+     * Rows and columns follow the order nodes were added in.
+     */
+    public BitMatrix toBitMatrix() {
+        return BitMatrix.of(freeze());
+    }
+    
+    public Graph invertDirections() {
+        return freeze().invertDirections();
+    }
+    
+    public List<Node> topologicalOrder() {
+        return freeze().topologicalOrder();
+    }
+    
+    public Stream<Node> topologicalStream() {
+        return freeze().topologicalStream();
+    }
+    
+    public List<Node> findCycle() {
+        return freeze().findCycle();
+    }
+    
+    public List<List<Node>> stronglyConnectedComponents() {
+        return freeze().stronglyConnectedComponents();
+    }
+    
+    public Graph condensation() {
+        return freeze().condensation();
+    }
+    
+    /**
+     * Number of islands, ignoring edge directions. Kept up to date as nodes and edges are added,
+     * so this is O(1) unless nodes were removed since the last call: the first query after a removal
+     * recounts every island synchronously, in O(n + e), before answering.
+     */
+    public int numberOfTrees() {
+        // ids of removed nodes stay behind as singletons
+        return components().count() - (symbols.size() - nodeCount);
+    }
+    
+    /**
+     * Whether the two nodes are in the same island, ignoring edge directions.
+     */
+    public boolean connected(String aKey, String bKey) {
+        int a = liveId(aKey);
+        int b = liveId(bKey);
+        return a >= 0 && b >= 0 && components().connected(a, b);
+    }
+    
+    /**
+     * Whether there is a path from one node to the other, answered from a reachability index.
+     * The index is built on the first query and kept until a change could make it wrong.
+     */
+    public boolean reaches(String fromKey, String toKey) {
+        int from = liveId(fromKey);
+        int to = liveId(toKey);
+        return from >= 0 && to >= 0 && reachable(from, to);
+    }
+    
+    public ReachabilityIndex reachabilityIndex() {
+        if (reachability == null)
+            reachability = new ReachabilityIndex(freeze());
+        return reachability;
+    }
+    
+    private boolean reachable(int from, int to) {
+        if (from == to)
+            return true;
+        // ids match the snapshot's unless nodes were removed before, or added after, it was taken;
+        // nodes added after it have no edges in it, and reach nothing yet
+        ReachabilityIndex index = reachabilityIndex();
+        if (index.graph.nodeCount() != symbols.size()) {
+            int a = index.graph.idOf(keyOf(from));
+            int b = index.graph.idOf(keyOf(to));
+            return a >= 0 && b >= 0 && index.reaches(a, b);
+        }
+        return index.reaches(from, to);
+    }
+    
+    private UnionFind components() {
+        // unions cannot be undone, so a removal throws the sets away and the next query rebuilds them, on the caller's thread
+        if (components == null)
+            components = AtomicUnionFind.of(this).toUnionFind();
+        return components;
+    }
+    
+    public ParallelBfs.Result parallelBreadthFirstSearch(Node start) {
+        return freeze().parallelBreadthFirstSearch(start);
+    }
+    
+    public MinimumSpanningForest minimumSpanningForest() {
+        return freeze().minimumSpanningForest();
+    }
+    
+    /**
+     * An immutable CSR snapshot of the graph, with nodes numbered in insertion order.
+     * Later changes to this graph are not reflected in the snapshot's adjacency; they make the next call take a new one.
+     * Its nodes are this graph's own node objects, the ones getNode() returns, so their edgesToNeighbors
+     * keep following this graph, not the snapshot.
+     */
+    public CsrGraph freeze() {
+        if (frozen == null)
+            frozen = snapshot();
+        return frozen;
+    }
+    
+    private CsrGraph snapshot() {
+        // ids of removed nodes leave gaps, the snapshot numbers the rest densely
+        int bound = symbols.size();
+        int[] dense = new int[bound];
+        Node[] frozen = new Node[nodeCount];
+        SymbolTable frozenSymbols = nodeCount == bound ? symbols.copy() : new SymbolTable();
+        int n = 0;
+        for (int id = 0; id < bound; id++) {
+            if (out[id] == null)
+                continue;
+            frozen[n] = node(id);
+            if (nodeCount != bound)
+                frozenSymbols.intern(frozen[n].key);
+            dense[id] = n++;
+        }
+        
+        int[] offsets = new int[n + 1];
+        boolean weighted = false;
+        for (int id = 0, i = 0; id < bound; id++) {
+            if (out[id] == null)
+                continue;
+            offsets[i + 1] = offsets[i] + outDegree[id];
+            weighted |= weights[id] != null;
+            i++;
+        }
+        
+        int[] targets = new int[offsets[n]];
+        double[] frozenWeights = weighted ? new double[offsets[n]] : null;
+        for (int id = 0, i = 0; id < bound; id++) {
+            if (out[id] == null)
+                continue;
+            for (int edge = 0; edge < outDegree[id]; edge++) {
+                targets[offsets[i] + edge] = dense[out[id][edge]];
+                if (weighted)
+                    frozenWeights[offsets[i] + edge] = weights[id] == null || edge >= weights[id].length ? 1.0 : weights[id][edge];
+            }
+            i++;
+        }
+        return CsrGraph.withTranspose(frozen, frozenSymbols, offsets, targets, frozenWeights);
+    }
+    
+}
+
+/**
+ * An immutable snapshot of a graph, in compressed sparse row (CSR) form.
+ * Nodes get dense ids 0..n-1 and the neighbors of node i are kept in
+ * targets[offsets[i]] .. targets[offsets[i + 1] - 1], so traversals walk plain int arrays
+ * instead of looking up every neighbor by key.
+ * Incoming edges are kept the same way, so inverting the directions is just a swap.
+ */
+class CsrGraph implements Graph, Adjacency {
+    final Node[] nodes;
+    final SymbolTable symbols;
+    final int[] offsets;
+    final int[] targets;
+    final int[] inOffsets;
+    final int[] sources;
+    // edge weights, parallel to targets and sources, null if every edge weighs 1
+    final double[] weights;
+    final double[] inWeights;
+    // islands, counted on first use; the snapshot never changes, so neither does the count
+    private volatile int trees = -1;
+    
+    CsrGraph(Node[] nodes, SymbolTable symbols, int[] offsets, int[] targets, int[] inOffsets, int[] sources,
+            double[] weights, double[] inWeights) {
+        this.nodes = nodes;
+        this.symbols = symbols;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.inOffsets = inOffsets;
+        this.sources = sources;
+        this.weights = weights;
+        this.inWeights = inWeights;
+    }
+    
+    public static CsrGraph of(Collection<Node> nodeList) {
+        int n = nodeList.size();
+        Node[] nodes = nodeList.toArray(new Node[n]);
+        SymbolTable symbols = new SymbolTable();
+        for (int i = 0; i < n; i++)
+            symbols.intern(nodes[i].key);
+        
+        // outgoing edges, in the same order as in edgesToNeighbors
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] = offsets[i] + nodes[i].edgesToNeighbors.size();
+        
+        int[] targets = new int[offsets[n]];
+        boolean weighted = false;
+        for (int i = 0; i < n; i++) {
+            int pos = offsets[i];
+            for (String key: nodes[i].edgesToNeighbors) {
+                int id = symbols.idOf(key);
+                if (id < 0)
+                    throw new RuntimeException("Node keyed \"" + key + "\" not found");
+                targets[pos++] = id;
+            }
+            weighted |= nodes[i].edgeWeights != null;
+        }
+        
+        double[] weights = null;
+        if (weighted) {
+            weights = new double[targets.length];
+            for (int i = 0; i < n; i++) {
+                for (int e = offsets[i]; e < offsets[i + 1]; e++)
+                    weights[e] = nodes[i].weightOf(e - offsets[i]);
+            }
+        }
+        
+        return withTranspose(nodes, symbols, offsets, targets, weights);
+    }
+    
+    static CsrGraph withTranspose(Node[] nodes, SymbolTable symbols, int[] offsets, int[] targets, double[] weights) {
+        // incoming edges, a counting sort of the outgoing ones by target
+        int n = nodes.length;
+        int[] inOffsets = new int[n + 1];
+        for (int t: targets)
+            inOffsets[t + 1]++;
+        for (int i = 0; i < n; i++)
+            inOffsets[i + 1] += inOffsets[i];
+        
+        int[] fill = Arrays.copyOf(inOffsets, n);
+        int[] sources = new int[targets.length];
+        double[] inWeights = weights == null ? null : new double[targets.length];
+        for (int i = 0; i < n; i++) {
+            for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                int pos = fill[targets[e]]++;
+                sources[pos] = i;
+                if (weights != null)
+                    inWeights[pos] = weights[e];
+            }
+        }
+        
+        return new CsrGraph(nodes, symbols, offsets, targets, inOffsets, sources, weights, inWeights);
+    }
+    
+    public int nodeCount() {
+        return nodes.length;
+    }
+    
+    public int edgeCount() {
+        return targets.length;
+    }
+    
+    public Node node(int id) {
+        return nodes[id];
+    }
+    
+    public int idOf(String key) {
+        return symbols.idOf(key);
+    }
+    
+    int requireId(Node node) {
+        int id = idOf(node.key);
+        if (id < 0)
+            throw new RuntimeException("Node keyed \"" + node.key + "\" not found");
+        return id;
+    }
+    
+    public int outDegree(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+    
+    public int inDegree(int id) {
+        return inOffsets[id + 1] - inOffsets[id];
+    }
+    
+    public double weight(int edge) {
+        return weights == null ? 1.0 : weights[edge];
+    }
+    
+    public int idBound() {
+        return nodes.length;
+    }
+    
+    public int degree(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+    
+    public int neighbor(int id, int index) {
+        return targets[offsets[id] + index];
+    }
+    
+    public void clear() {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public void addNode(Node node) {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public void addEdge(String fromKey, String toKey) {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public void addEdge(String fromKey, String toKey, double weight) {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public void removeNode(String key) {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public void print() {
+        for (int i = 0; i < nodes.length; i++) {
+            System.out.println("" + nodes[i].key + ":[" + String.join(",", neighborKeys(i)) + "]");
+        }
+    }
+    
+    public String debugString() {
+        List<String> nodesStrings = new ArrayList<String>();
+        for (int i = 0; i < nodes.length; i++) {
+            nodesStrings.add(nodes[i].key + "[" + String.join(",", neighborKeys(i)) + "]");
+        }
+        return String.join(" ", nodesStrings);
+    }
+    
+    private List<String> neighborKeys(int id) {
+        List<String> keys = new ArrayList<String>();
+        for (int e = offsets[id]; e < offsets[id + 1]; e++)
+            keys.add(nodes[targets[e]].key);
+        return keys;
+    }
+    
+    public void depthFirstSearch(Node start, Consumer<Node> consumer) {
+        depthFirstSearch(requireId(start), id -> consumer.accept(nodes[id]));
+    }
+    
+    public void depthFirstSearch(int start, IntConsumer consumer) {
+        // every node is pushed at most once, so the stack never outgrows n
+        int[] stack = new int[nodes.length];
+        boolean[] visited = new boolean[nodes.length];
+        int top = 0;
+        
+        stack[top++] = start;
+        visited[start] = true;
+        while (top > 0) {
+            int current = stack[--top];
+            consumer.accept(current);
+            
+            for (int e = offsets[current]; e < offsets[current + 1]; e++) {
+                int neighbor = targets[e];
+                if (visited[neighbor])
+                    continue;
+                
+                stack[top++] = neighbor;
+                visited[neighbor] = true;
+            }
+        }
+    }
+    
+    public void breadthFirstSearch(Node start, Consumer<Node> consumer) {
+        breadthFirstSearch(requireId(start), id -> consumer.accept(nodes[id]));
+    }
+    
+    public void breadthFirstSearch(int start, IntConsumer consumer) {
+        int[] queue = new int[nodes.length];
+        boolean[] visited = new boolean[nodes.length];
+        int head = 0;
+        int tail = 0;
+        
+        queue[tail++] = start;
+        visited[start] = true;
+        while (head < tail) {
+            int current = queue[head++];
+            consumer.accept(current);
+            
+            for (int e = offsets[current]; e < offsets[current + 1]; e++) {
+                int neighbor = targets[e];
+                if (visited[neighbor])
+                    continue;
+                
+                queue[tail++] = neighbor;
+                visited[neighbor] = true;
+            }
+        }
+    }
+    
+    public Stream<Node> depthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), true);
+    }
+    
+    public Stream<Node> breadthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), false);
+    }
+    
+    /**
+     * Reachable nodes in no particular order; call parallel() on it to spread the search over the pool.
+     */
+    public Stream<Node> reachableStream(Node start) {
+        return ReachableSpliterator.stream(this, requireId(start), false);
+    }
+    
+    /**
+     * Direction optimizing BFS on the common ForkJoin pool, see {@link ParallelBfs}.
+     */
+    public ParallelBfs.Result parallelBreadthFirstSearch(Node start) {
+        return new ParallelBfs(this).run(requireId(start));
+    }
+    
+    /**
+     * Shortest path by number of edges, using a bidirectional BFS.
+     * Returns an empty list if the target is not reachable.
+     */
+    public List<Node> findPath(Node source, Node target) {
+        PathSearch search = PathSearch.forThread(nodes.length);
+        return search.pathNodes(this, search.unweighted(this, requireId(source), requireId(target)));
+    }
+    
+    /**
+     * Shortest path by total weight, using Dijkstra.
+     */
+    public List<Node> shortestPath(Node source, Node target) {
+        PathSearch search = PathSearch.forThread(nodes.length);
+        return search.pathNodes(this, search.weighted(this, requireId(source), requireId(target), null));
+    }
+    
+    /**
+     * Shortest path by total weight, using A*. The heuristic estimates the remaining
+     * weight from a node to the target and must be consistent: never more than the weight
+     * of any edge u -> v plus its estimate for v, and 0 at the target. Settled nodes are never
+     * reopened, so an admissible but inconsistent heuristic can miss the shortest path.
+     */
+    public List<Node> shortestPath(Node source, Node target, ToDoubleFunction<Node> heuristic) {
+        PathSearch search = PathSearch.forThread(nodes.length);
+        return search.pathNodes(this, search.weighted(this, requireId(source), requireId(target), heuristic));
+    }
+    
+    public boolean isAcyclic() {
+        return topologicalOrder() != null;
+    }
+    
+    public void fromAdjacencyMatrix(boolean[][] matrix) {
+        throw new UnsupportedOperationException("CSR snapshots are immutable");
+    }
+    
+    public boolean[][] toAdjacencyMatrix() {
+        return BitMatrix.of(this).toBooleans();
+    }
+    
+    public Graph invertDirections() {
+        // zero copy, the incoming edges of this graph are the outgoing edges of the inverted one
+        return new CsrGraph(nodes, symbols, inOffsets, sources, offsets, targets, inWeights, weights);
+    }
+    
+    /**
+     * Returns the nodes so that every edge points forward, or null if the graph has a cycle.
+     */
+    public List<Node> topologicalOrder() {
+        TopologicalSort sort = new TopologicalSort(this);
+        List<Node> order = new ArrayList<Node>(nodes.length);
+        while (sort.hasNext())
+            order.add(sort.next());
+        return order.size() == nodes.length ? order : null;
+    }
+    
+    /**
+     * Lazily emits nodes in topological order. On a cyclic graph the stream ends early,
+     * leaving out the nodes that depend on a cycle.
+     */
+    public Stream<Node> topologicalStream() {
+        return new TopologicalSort(this).stream();
+    }
+    
+    public List<Node> findCycle() {
+        return new TopologicalSort(this).findCycle();
+    }
+    
+    public List<List<Node>> stronglyConnectedComponents() {
+        return StronglyConnectedComponents.compute(this, false).components();
+    }
+    
+    public Graph condensation() {
+        return StronglyConnectedComponents.compute(this, false).condensation();
+    }
+    
+    /**
+     * Components of this snapshot, optionally with every weakly connected component in parallel.
+     */
+    public StronglyConnectedComponents strongComponents(boolean parallel) {
+        return StronglyConnectedComponents.compute(this, parallel);
+    }
+    
+    /**
+     * Minimum spanning forest, ignoring edge directions, found with parallel Boruvka.
+     */
+    public MinimumSpanningForest minimumSpanningForest() {
+        return MinimumSpanningForest.boruvka(this);
+    }
+    
+    /**
+     * Number of weakly connected components, edges unioned in parallel the first time it is asked for.
+     */
+    public int numberOfTrees() {
+        int count = trees;
+        if (count < 0)
+            trees = count = AtomicUnionFind.of(this).count();
+        return count;
+    }
+}
+
+/**
+ * Level synchronous parallel BFS over a CSR snapshot, on a ForkJoin pool.
+ * Small frontiers are expanded top-down (frontier nodes claim their unvisited neighbors),
+ * large ones bottom-up (unvisited nodes look for any parent in the frontier), which skips
+ * most of the edges of wide, shallow graphs. Frontiers and visited nodes are atomic bitsets.
+ */
+class ParallelBfs {
+    // switching thresholds, as suggested by Beamer et al.
+    static final int ALPHA = 14;
+    static final int BETA = 24;
+    // words of 64 nodes handled by a single task
+    static final int GRAIN = 64;
+    
+    final CsrGraph graph;
+    final ForkJoinPool pool;
+    final int grain;
+    
+    public ParallelBfs(CsrGraph graph) {
+        this(graph, ForkJoinPool.commonPool());
+    }
+    
+    public ParallelBfs(CsrGraph graph, ForkJoinPool pool) {
+        this(graph, pool, GRAIN);
+    }
+    
+    /**
+     * With tasks split down to the given number of 64 node words.
+     */
+    public ParallelBfs(CsrGraph graph, ForkJoinPool pool, int grain) {
+        this.graph = graph;
+        this.pool = pool;
+        this.grain = grain;
+    }
+    
+    /**
+     * Depth and BFS tree parent of every node, -1 for nodes not reachable from the start.
+     */
+    static class Result {
+        final CsrGraph graph;
+        final int[] depth;
+        final int[] parent;
+        final int reached;
+        
+        Result(CsrGraph graph, int[] depth, int[] parent, int reached) {
+            this.graph = graph;
+            this.depth = depth;
+            this.parent = parent;
+            this.reached = reached;
+        }
+        
+        public int depthOf(Node node) {
+            return depth[graph.requireId(node)];
+        }
+        
+        public Node parentOf(Node node) {
+            int p = parent[graph.requireId(node)];
+            return p < 0 ? null : graph.node(p);
+        }
+    }
+    
+    public Result run(int start) {
+        int n = graph.nodeCount();
+        int words = (n + 63) >>> 6;
+        int[] depth = new int[n];
+        int[] parent = new int[n];
+        Arrays.fill(depth, -1);
+        Arrays.fill(parent, -1);
+        
+        AtomicLongArray visited = new AtomicLongArray(words);
+        AtomicLongArray frontier = new AtomicLongArray(words);
+        AtomicLongArray next = new AtomicLongArray(words);
+        
+        depth[start] = 0;
+        parent[start] = start;
+        visited.set(start >>> 6, 1L << start);
+        frontier.set(start >>> 6, 1L << start);
+        
+        long frontierSize = 1;
+        long frontierEdges = graph.outDegree(start);
+        long unexploredEdges = graph.edgeCount() - frontierEdges;
+        int reached = 1;
+        boolean bottomUp = false;
+        
+        for (int level = 0; frontierSize > 0; level++) {
+            if (!bottomUp && frontierEdges > unexploredEdges / ALPHA)
+                bottomUp = true;
+            else if (bottomUp && frontierSize < n / BETA)
+                bottomUp = false;
+            
+            Step step = new Step(bottomUp, level, 0, words, visited, frontier, next, depth, parent);
+            pool.invoke(step);
+            
+            frontierSize = step.discovered.sum();
+            frontierEdges = step.discoveredEdges.sum();
+            unexploredEdges -= frontierEdges;
+            reached += frontierSize;
+            
+            AtomicLongArray swap = frontier;
+            frontier = next;
+            next = swap;
+            for (int w = 0; w < words; w++)
+                next.set(w, 0);
+        }
+        
+        parent[start] = -1;
+        return new Result(graph, depth, parent, reached);
+    }
+    
+    private class Step extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        final boolean bottomUp;
+        final int level;
+        final int fromWord, toWord;
+        final AtomicLongArray visited, frontier, next;
+        final int[] depth, parent;
+        final LongAdder discovered;
+        final LongAdder discoveredEdges;
+        
+        Step(boolean bottomUp, int level, int fromWord, int toWord, AtomicLongArray visited,
+                AtomicLongArray frontier, AtomicLongArray next, int[] depth, int[] parent) {
+            this(bottomUp, level, fromWord, toWord, visited, frontier, next, depth, parent, new LongAdder(), new LongAdder());
+        }
+        
+        Step(boolean bottomUp, int level, int fromWord, int toWord, AtomicLongArray visited,
+                AtomicLongArray frontier, AtomicLongArray next, int[] depth, int[] parent,
+                LongAdder discovered, LongAdder discoveredEdges) {
+            this.bottomUp = bottomUp;
+            this.level = level;
+            this.fromWord = fromWord;
+            this.toWord = toWord;
+            this.visited = visited;
+            this.frontier = frontier;
+            this.next = next;
+            this.depth = depth;
+            this.parent = parent;
+            this.discovered = discovered;
+            this.discoveredEdges = discoveredEdges;
+        }
+        
+        protected void compute() {
+            if (toWord - fromWord > grain) {
+                int mid = (fromWord + toWord) >>> 1;
+                invokeAll(
+                    new Step(bottomUp, level, fromWord, mid, visited, frontier, next, depth, parent, discovered, discoveredEdges),
+                    new Step(bottomUp, level, mid, toWord, visited, frontier, next, depth, parent, discovered, discoveredEdges));
+                return;
+            }
+            
+            if (bottomUp)
+                bottomUpRange();
+            else
+                topDownRange();
+        }
+        
+        private void topDownRange() {
+            long found = 0;
+            long foundEdges = 0;
+            for (int w = fromWord; w < toWord; w++) {
+                long bits = frontier.get(w);
+                while (bits != 0) {
+                    int u = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    
+                    for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                        int v = graph.targets[e];
+                        if (!claim(v))
+                            continue;
+                        
+                        depth[v] = level + 1;
+                        parent[v] = u;
+                        setBit(next, v);
+                        found++;
+                        foundEdges += graph.outDegree(v);
+                    }
+                }
+            }
+            discovered.add(found);
+            discoveredEdges.add(foundEdges);
+        }
+        
+        private void bottomUpRange() {
+            // this task owns its words of visited and next, so no other thread races on them
+            long found = 0;
+            long foundEdges = 0;
+            int end = Math.min(toWord << 6, graph.nodeCount());
+            for (int v = fromWord << 6; v < end; v++) {
+                if ((visited.get(v >>> 6) & (1L << v)) != 0)
+                    continue;
+                
+                for (int e = graph.inOffsets[v]; e < graph.inOffsets[v + 1]; e++) {
+                    int u = graph.sources[e];
+                    if ((frontier.get(u >>> 6) & (1L << u)) == 0)
+                        continue;
+                    
+                    depth[v] = level + 1;
+                    parent[v] = u;
+                    setBit(visited, v);
+                    setBit(next, v);
+                    found++;
+                    foundEdges += graph.outDegree(v);
+                    break;
+                }
+            }
+            discovered.add(found);
+            discoveredEdges.add(foundEdges);
+        }
+        
+        private boolean claim(int v) {
+            int w = v >>> 6;
+            long mask = 1L << v;
+            while (true) {
+                long current = visited.get(w);
+                if ((current & mask) != 0)
+                    return false;
+                if (visited.compareAndSet(w, current, current | mask))
+                    return true;
+            }
+        }
+    }
+    
+    private static void setBit(AtomicLongArray bits, int v) {
+        int w = v >>> 6;
+        long mask = 1L << v;
+        long current;
+        do {
+            current = bits.get(w);
+        } while (!bits.compareAndSet(w, current, current | mask));
+    }
+}
+
+/**
+ * Kahn's topological sort over a CSR snapshot, in O(V+E) and without recursion.
+ * Nodes are emitted lazily, as soon as all their predecessors have been emitted,
+ * so consumers can start working before the whole order is known.
+ * Nodes on (or behind) a cycle never become ready; once the iterator is exhausted,
+ * findCycle() reports one such cycle as a witness.
+ */
+class TopologicalSort implements Iterator<Node> {
+    final CsrGraph graph;
+    final int[] remainingInDegree;
+    final int[] ready;
+    int head, tail;
+    
+    public TopologicalSort(CsrGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        remainingInDegree = new int[n];
+        ready = new int[n];
+        
+        for (int i = 0; i < n; i++) {
+            remainingInDegree[i] = graph.inDegree(i);
+            if (remainingInDegree[i] == 0)
+                ready[tail++] = i;
+        }
+    }
+    
+    public boolean hasNext() {
+        return head < tail;
+    }
+    
+    public Node next() {
+        return graph.node(nextId());
+    }
+    
+    public int nextId() {
+        if (head >= tail)
+            throw new NoSuchElementException();
+        
+        int u = ready[head++];
+        for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+            int v = graph.targets[e];
+            if (--remainingInDegree[v] == 0)
+                ready[tail++] = v;
+        }
+        return u;
+    }
+    
+    public Stream<Node> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * Drains the remaining order and returns a cycle, as a list of nodes where each one
+     * has an edge to the next and the last one has an edge to the first.
+     * Returns an empty list if the graph is acyclic.
+     */
+    public List<Node> findCycle() {
+        while (hasNext())
+            nextId();
+        if (tail == graph.nodeCount())
+            return List.of();
+        
+        // every node left over still has a left over predecessor,
+        // so walking backwards along those must eventually repeat a node
+        int start = 0;
+        while (remainingInDegree[start] == 0)
+            start++;
+        
+        int[] positionOnPath = new int[graph.nodeCount()];
+        Arrays.fill(positionOnPath, -1);
+        int[] path = new int[graph.nodeCount()];
+        int length = 0;
+        
+        int v = start;
+        while (positionOnPath[v] < 0) {
+            positionOnPath[v] = length;
+            path[length++] = v;
+            for (int e = graph.inOffsets[v]; e < graph.inOffsets[v + 1]; e++) {
+                int u = graph.sources[e];
+                if (remainingInDegree[u] > 0) {
+                    v = u;
+                    break;
+                }
+            }
+        }
+        
+        // the path was walked against the edges, so read the cycle backwards
+        List<Node> cycle = new ArrayList<Node>();
+        cycle.add(graph.node(v));
+        for (int i = length - 1; i > positionOnPath[v]; i--)
+            cycle.add(graph.node(path[i]));
+        return cycle;
+    }
+}
+
+/**
+ * Answers "can a reach b?" without searching the graph, for graphs that are queried far
+ * more often than they change. Every strongly connected component becomes one node of a DAG.
+ * Small DAGs get their full transitive closure as bit rows, so a query is one bit test.
+ * Larger ones keep, per component, its height and two interval labels (GRAIL):
+ * a reaches b only if b's interval nests in a's under both labelings and a sits higher.
+ * Those checks reject most negative queries in O(1), and what is left is confirmed by
+ * a DFS that skips every component failing the same checks.
+ */
+class ReachabilityIndex {
+    // the closure of this many components takes 2MB
+    static final int CLOSURE_LIMIT = 4096;
+    static final int LABELINGS = 2;
+    
+    final CsrGraph graph;
+    final int[] component;
+    final CsrGraph dag;
+    final BitMatrix closure;
+    // longest path to a sink, a component only reaches lower ones
+    final int[] height;
+    // per labeling, a reverse topological number and the lowest one reachable from here
+    final int[][] post;
+    final int[][] low;
+    final long buildNanos;
+    private final ThreadLocal<int[]> stamps;
+    private final ThreadLocal<int[]> stacks;
+    private final ThreadLocal<int[]> epochs = ThreadLocal.withInitial(() -> new int[1]);
+    
+    ReachabilityIndex(CsrGraph graph) {
+        long started = System.nanoTime();
+        this.graph = graph;
+        StronglyConnectedComponents scc = graph.strongComponents(true);
+        component = scc.component;
+        dag = scc.condensation();
+        int c = dag.nodeCount();
+        
+        if (c <= CLOSURE_LIMIT) {
+            closure = BitMatrix.of(dag).transitiveClosure();
+            height = null;
+            post = null;
+            low = null;
+            stamps = null;
+            stacks = null;
+        } else {
+            closure = null;
+            // components are numbered sinks first, so successors always come earlier
+            height = new int[c];
+            for (int x = 0; x < c; x++) {
+                for (int e = dag.offsets[x]; e < dag.offsets[x + 1]; e++)
+                    height[x] = Math.max(height[x], height[dag.targets[e]] + 1);
+            }
+            post = new int[LABELINGS][];
+            low = new int[LABELINGS][];
+            for (int l = 0; l < LABELINGS; l++) {
+                post[l] = l == 0 ? identity(c) : reversePostOrder(dag);
+                low[l] = new int[c];
+                for (int x = 0; x < c; x++) {
+                    low[l][x] = post[l][x];
+                    for (int e = dag.offsets[x]; e < dag.offsets[x + 1]; e++)
+                        low[l][x] = Math.min(low[l][x], low[l][dag.targets[e]]);
+                }
+            }
+            stamps = ThreadLocal.withInitial(() -> new int[c]);
+            stacks = ThreadLocal.withInitial(() -> new int[c]);
+        }
+        buildNanos = System.nanoTime() - started;
+    }
+    
+    private static int[] identity(int n) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++)
+            ids[i] = i;
+        return ids;
+    }
+    
+    /**
+     * Post-order numbers of a DFS started from the last components and taking
+     * edges last to first, which is another order with every successor numbered first.
+     */
+    private static int[] reversePostOrder(CsrGraph dag) {
+        int c = dag.nodeCount();
+        int[] number = new int[c];
+        Arrays.fill(number, -1);
+        int[] stack = new int[c];
+        int[] nextEdge = new int[c];
+        boolean[] entered = new boolean[c];
+        int counter = 0;
+        for (int root = c - 1; root >= 0; root--) {
+            if (entered[root])
+                continue;
+            int top = 0;
+            stack[top++] = root;
+            entered[root] = true;
+            nextEdge[root] = dag.offsets[root + 1];
+            while (top > 0) {
+                int x = stack[top - 1];
+                if (nextEdge[x] > dag.offsets[x]) {
+                    int y = dag.targets[--nextEdge[x]];
+                    if (!entered[y]) {
+                        entered[y] = true;
+                        nextEdge[y] = dag.offsets[y + 1];
+                        stack[top++] = y;
+                    }
+                } else {
+                    number[x] = counter++;
+                    top--;
+                }
+            }
+        }
+        return number;
+    }
+    
+    public boolean reaches(Node from, Node to) {
+        return reaches(graph.requireId(from), graph.requireId(to));
+    }
+    
+    public boolean reaches(int from, int to) {
+        int a = component[from];
+        int b = component[to];
+        if (a == b)
+            return true;
+        if (closure != null)
+            return closure.reaches(a, b);
+        if (!mayReach(a, b))
+            return false;
+        return search(a, b);
+    }
+    
+    private boolean mayReach(int a, int b) {
+        if (height[a] <= height[b])
+            return false;
+        for (int l = 0; l < LABELINGS; l++) {
+            if (post[l][b] > post[l][a] || low[l][b] < low[l][a])
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean search(int a, int b) {
+        int[] stamp = stamps.get();
+        int[] stack = stacks.get();
+        int[] epoch = epochs.get();
+        if (++epoch[0] == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            epoch[0] = 1;
+        }
+        int mark = epoch[0];
+        
+        int top = 0;
+        stack[top++] = a;
+        stamp[a] = mark;
+        while (top > 0) {
+            int x = stack[--top];
+            for (int e = dag.offsets[x]; e < dag.offsets[x + 1]; e++) {
+                int y = dag.targets[e];
+                if (y == b)
+                    return true;
+                if (stamp[y] == mark || !mayReach(y, b))
+                    continue;
+                stamp[y] = mark;
+                stack[top++] = y;
+            }
+        }
+        return false;
+    }
+    
+    public int componentCount() {
+        return dag.nodeCount();
+    }
+    
+    public boolean usesClosure() {
+        return closure != null;
+    }
+    
+    /**
+     * Bytes held by the index itself, on top of the graph it was built from.
+     */
+    public long memoryBytes() {
+        long bytes = 4L * component.length + 4L * (dag.offsets.length + dag.targets.length + dag.inOffsets.length + dag.sources.length);
+        if (closure != null)
+            return bytes + closure.memoryBytes();
+        return bytes + 4L * height.length * (1 + 2 * LABELINGS);
+    }
+    
+    public long buildNanos() {
+        return buildNanos;
+    }
+    
+    public String toString() {
+        return "reachability over " + componentCount() + " components, "
+            + (usesClosure() ? "closure" : "interval labels") + ", " + memoryBytes() / 1024 + "KB, built in " + buildNanos / 1000000 + "ms";
+    }
+}
+
+/**
+ * Bulk synchronous, vertex centric computations over a CSR snapshot, in the style of Pregel.
+ * Every superstep, each vertex sends one message along its edges, messages to the same
+ * vertex are folded together with the combiner, and the vertex function turns the old value
+ * and the folded message into the new value. Vertices pull their messages over the transposed
+ * edges, so no two threads ever write the same slot and no locks are needed.
+ * Values live in a double[], messages in two off-heap buffers that swap every superstep.
+ */
+class PregelEngine {
+    // vertices handled by a single task
+    static final int GRAIN = 2048;
+    
+    final CsrGraph graph;
+    final ForkJoinPool pool;
+    
+    /**
+     * What runs on every vertex. Values and messages are doubles, ids are the snapshot's.
+     */
+    interface VertexProgram {
+        double initial(int vertex);
+        
+        // the message sent along every edge leaving the vertex
+        double message(int vertex, double value);
+        
+        // the new value, given all the messages that came in folded into one
+        double compute(int superstep, int vertex, double value, double combined);
+    }
+    
+    /**
+     * Folds messages into one; identity is what a vertex without messages gets.
+     */
+    static class Combiner {
+        static final Combiner SUM = new Combiner(0.0, Double::sum);
+        static final Combiner MIN = new Combiner(Double.POSITIVE_INFINITY, Math::min);
+        static final Combiner MAX = new Combiner(Double.NEGATIVE_INFINITY, Math::max);
+        
+        final double identity;
+        final DoubleBinaryOperator fold;
+        
+        Combiner(double identity, DoubleBinaryOperator fold) {
+            this.identity = identity;
+            this.fold = fold;
+        }
+    }
+    
+    static class Result {
+        final double[] values;
+        final int supersteps;
+        final boolean converged;
+        final long nanos;
+        
+        Result(double[] values, int supersteps, boolean converged, long nanos) {
+            this.values = values;
+            this.supersteps = supersteps;
+            this.converged = converged;
+            this.nanos = nanos;
+        }
+    }
+    
+    public PregelEngine(CsrGraph graph) {
+        this(graph, ForkJoinPool.commonPool());
+    }
+    
+    public PregelEngine(CsrGraph graph, ForkJoinPool pool) {
+        this.graph = graph;
+        this.pool = pool;
+    }
+    
+    /**
+     * Runs supersteps until no value moves by more than tolerance, or maxSupersteps ran.
+     * When undirected, messages also travel against the direction of the edges.
+     */
+    public Result run(VertexProgram program, Combiner combiner, boolean undirected, int maxSupersteps, double tolerance) {
+        long started = System.nanoTime();
+        int n = graph.nodeCount();
+        double[] values = new double[n];
+        DoubleBuffer current = ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        DoubleBuffer next = ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        for (int v = 0; v < n; v++) {
+            values[v] = program.initial(v);
+            current.put(v, program.message(v, values[v]));
+        }
+        
+        int superstep = 0;
+        boolean converged = false;
+        while (superstep < maxSupersteps && !converged) {
+            double change = pool.invoke(new Superstep(program, combiner, undirected, superstep, 0, n, values, current, next));
+            DoubleBuffer swap = current;
+            current = next;
+            next = swap;
+            superstep++;
+            converged = change <= tolerance;
+        }
+        return new Result(values, superstep, converged, System.nanoTime() - started);
+    }
+    
+    private class Superstep extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+        
+        final VertexProgram program;
+        final Combiner combiner;
+        final boolean undirected;
+        final int superstep;
+        final int from, to;
+        final double[] values;
+        final DoubleBuffer current, next;
+        
+        Superstep(VertexProgram program, Combiner combiner, boolean undirected, int superstep, int from, int to,
+                double[] values, DoubleBuffer current, DoubleBuffer next) {
+            this.program = program;
+            this.combiner = combiner;
+            this.undirected = undirected;
+            this.superstep = superstep;
+            this.from = from;
+            this.to = to;
+            this.values = values;
+            this.current = current;
+            this.next = next;
+        }
+        
+        /**
+         * The largest change of any value in the range.
+         */
+        protected Double compute() {
+            if (to - from > GRAIN) {
+                int mid = (from + to) >>> 1;
+                Superstep right = new Superstep(program, combiner, undirected, superstep, mid, to, values, current, next);
+                right.fork();
+                double left = new Superstep(program, combiner, undirected, superstep, from, mid, values, current, next).compute();
+                return Math.max(left, right.join());
+            }
+            
+            int[] inOffsets = graph.inOffsets;
+            int[] sources = graph.sources;
+            double change = 0;
+            for (int v = from; v < to; v++) {
+                double combined = combiner.identity;
+                for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++)
+                    combined = combiner.fold.applyAsDouble(combined, current.get(sources[e]));
+                if (undirected) {
+                    for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++)
+                        combined = combiner.fold.applyAsDouble(combined, current.get(graph.targets[e]));
+                }
+                
+                double value = program.compute(superstep, v, values[v], combined);
+                change = Math.max(change, Math.abs(value - values[v]));
+                values[v] = value;
+                next.put(v, program.message(v, value));
+            }
+            return change;
+        }
+    }
+    
+    /**
+     * PageRank with the given damping. Rank of dangling nodes is not redistributed,
+     * as in the original Pregel example, so ranks sum to at most 1.
+     */
+    public Result pageRank(double damping, int maxSupersteps, double tolerance) {
+        int n = graph.nodeCount();
+        return run(new VertexProgram() {
+            public double initial(int vertex) {
+                return 1.0 / n;
+            }
+            
+            public double message(int vertex, double value) {
+                int degree = graph.outDegree(vertex);
+                return degree == 0 ? 0.0 : value / degree;
+            }
+            
+            public double compute(int superstep, int vertex, double value, double combined) {
+                return (1 - damping) / n + damping * combined;
+            }
+        }, Combiner.SUM, false, maxSupersteps, tolerance);
+    }
+    
+    /**
+     * Every vertex ends up labeled with the smallest id in its island, edge directions ignored.
+     */
+    public Result labelPropagation() {
+        return run(new VertexProgram() {
+            public double initial(int vertex) {
+                return vertex;
+            }
+            
+            public double message(int vertex, double value) {
+                return value;
+            }
+            
+            public double compute(int superstep, int vertex, double value, double combined) {
+                return Math.min(value, combined);
+            }
+        }, Combiner.MIN, true, Integer.MAX_VALUE, 0.0);
+    }
+    
+    /**
+     * Average out degree of the vertices pointing at each vertex, 0 when none do.
+     */
+    public Result averageSourceDegree() {
+        return run(new VertexProgram() {
+            public double initial(int vertex) {
+                return 0.0;
+            }
+            
+            public double message(int vertex, double value) {
+                return graph.outDegree(vertex);
+            }
+            
+            public double compute(int superstep, int vertex, double value, double combined) {
+                int degree = graph.inDegree(vertex);
+                return degree == 0 ? 0.0 : combined / degree;
+            }
+        }, Combiner.SUM, false, 1, 0.0);
+    }
+}
+
+/**
+ * Runs many traversals at once over one shared, read only snapshot. Each query runs on
+ * its own virtual thread where the JVM has them, and on a cached pool of platform
+ * threads otherwise. Visited marks and frontiers come from a pool of workspaces with
+ * epoch stamps, so a query allocates nothing proportional to the graph. A query is
+ * a CompletableFuture: cancelling it, or letting its timeout expire, completes it, and
+ * the traversal notices within CHECK_EVERY nodes and gives its workspace back.
+ */
+class TraversalService implements AutoCloseable {
+    static final int CHECK_EVERY = 1024;
+    
+    final CsrGraph graph;
+    final ExecutorService executor;
+    final boolean virtualThreads;
+    final GraphMetrics metrics;
+    private final ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<Workspace>();
+    
+    static class Workspace {
+        final int[] stamp;
+        final int[] frontier;
+        int epoch;
+        
+        Workspace(int n) {
+            stamp = new int[n];
+            frontier = new int[n];
+        }
+        
+        int nextEpoch() {
+            if (++epoch == 0) {
+                // wrapped around, old stamps could collide with new epochs
+                Arrays.fill(stamp, 0);
+                epoch = 1;
+            }
+            return epoch;
+        }
+    }
+    
+    /**
+     * A traversal in flight, completed with the number of nodes it visited.
+     */
+    static class Query extends CompletableFuture<Integer> {
+        final long submittedNanos = System.nanoTime();
+        // released once no worker touches the query any more, even if it was cancelled
+        final CountDownLatch stopped = new CountDownLatch(1);
+    }
+    
+    public TraversalService(CsrGraph graph) {
+        this(graph, null);
+    }
+    
+    public TraversalService(CsrGraph graph, GraphMetrics metrics) {
+        this.graph = graph;
+        this.metrics = metrics;
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "traversal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up at runtime since it needs Java 21.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    public Query breadthFirstSearch(int start, IntConsumer consumer, long timeout, TimeUnit unit) {
+        return submit(start, consumer, false, timeout, unit);
+    }
+    
+    public Query depthFirstSearch(int start, IntConsumer consumer, long timeout, TimeUnit unit) {
+        return submit(start, consumer, true, timeout, unit);
+    }
+    
+    private Query submit(int start, IntConsumer consumer, boolean depthFirst, long timeout, TimeUnit unit) {
+        Query query = new Query();
+        query.orTimeout(timeout, unit);
+        try {
+            executor.execute(() -> run(query, start, consumer, depthFirst));
+        } catch (RejectedExecutionException e) {
+            query.completeExceptionally(e);
+            query.stopped.countDown();
+        }
+        return query;
+    }
+    
+    private void run(Query query, int start, IntConsumer consumer, boolean depthFirst) {
+        if (query.isDone()) {
+            query.stopped.countDown();
+            return;
+        }
+        Workspace workspace = workspaces.poll();
+        if (workspace == null)
+            workspace = new Workspace(graph.nodeCount());
+        try {
+            int visited = search(query, workspace, start, consumer, depthFirst);
+            if (visited >= 0)
+                query.complete(visited);
+        } catch (RuntimeException e) {
+            query.completeExceptionally(e);
+        } finally {
+            workspaces.offer(workspace);
+            if (metrics != null)
+                metrics.record(depthFirst ? "serviceDepthFirstSearch" : "serviceBreadthFirstSearch", System.nanoTime() - query.submittedNanos);
+            query.stopped.countDown();
+        }
+    }
+    
+    /**
+     * The number of nodes visited, or -1 when the query was completed (cancelled) meanwhile.
+     */
+    private int search(Query query, Workspace workspace, int start, IntConsumer consumer, boolean depthFirst) {
+        int[] stamp = workspace.stamp;
+        int[] frontier = workspace.frontier;
+        int mark = workspace.nextEpoch();
+        int head = 0;
+        int tail = 0;
+        int visited = 0;
+        
+        frontier[tail++] = start;
+        stamp[start] = mark;
+        while (head < tail) {
+            if ((visited & (CHECK_EVERY - 1)) == 0 && query.isDone())
+                return -1;
+            int current = depthFirst ? frontier[--tail] : frontier[head++];
+            consumer.accept(current);
+            visited++;
+            
+            for (int e = graph.offsets[current]; e < graph.offsets[current + 1]; e++) {
+                int neighbor = graph.targets[e];
+                if (stamp[neighbor] == mark)
+                    continue;
+                stamp[neighbor] = mark;
+                frontier[tail++] = neighbor;
+            }
+        }
+        return visited;
+    }
+    
+    public int pooledWorkspaces() {
+        return workspaces.size();
+    }
+    
+    public void close() {
+        executor.shutdown();
+    }
+}
+
+/**
+ * Disjoint sets over dense int ids, with path compression and union by rank,
+ * so that find() and union() run in near constant amortized time.
+ */
+class UnionFind {
+    int[] parent;
+    byte[] rank;
+    int count;
+    int size;
+    
+    public UnionFind(int n) {
+        parent = new int[n];
+        rank = new byte[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i;
+        count = n;
+        size = n;
+    }
+    
+    /**
+     * Adds a new singleton set and returns its id, which is the next unused one.
+     */
+    public int add() {
+        if (size == parent.length) {
+            parent = Arrays.copyOf(parent, Math.max(16, size * 2));
+            rank = Arrays.copyOf(rank, parent.length);
+        }
+        parent[size] = size;
+        count++;
+        return size++;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int find(int x) {
+        int root = x;
+        while (parent[root] != root)
+            root = parent[root];
+        
+        // compress the path, so next time we jump straight to the root
+        while (parent[x] != root) {
+            int next = parent[x];
+            parent[x] = root;
+            x = next;
+        }
+        return root;
+    }
+    
+    public boolean union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra == rb)
+            return false;
+        
+        if (rank[ra] < rank[rb]) {
+            parent[ra] = rb;
+        } else if (rank[ra] > rank[rb]) {
+            parent[rb] = ra;
+        } else {
+            parent[rb] = ra;
+            rank[ra]++;
+        }
+        count--;
+        return true;
+    }
+    
+    public boolean connected(int a, int b) {
+        return find(a) == find(b);
+    }
+    
+    public int count() {
+        return count;
+    }
+}
+
+/**
+ * Disjoint sets that many threads can union at once without locks.
+ * Roots are always linked under the smaller id with a CAS, so no cycles can form,
+ * and find() halves the path it walks as it goes.
+ */
+class AtomicUnionFind {
+    final AtomicIntegerArray parent;
+    final AtomicInteger count;
+    
+    public AtomicUnionFind(int n) {
+        parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++)
+            parent.set(i, i);
+        count = new AtomicInteger(n);
+    }
+    
+    /**
+     * Weakly connected components of the graph, with its edges unioned in parallel.
+     */
+    public static AtomicUnionFind of(Adjacency graph) {
+        AtomicUnionFind sets = new AtomicUnionFind(graph.idBound());
+        IntStream.range(0, graph.idBound()).parallel().forEach(u -> {
+            for (int i = 0; i < graph.degree(u); i++)
+                sets.union(u, graph.neighbor(u, i));
+        });
+        return sets;
+    }
+    
+    public int find(int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x)
+                return x;
+            int grandparent = parent.get(p);
+            // losing this race is harmless, someone else shortened the path already
+            parent.compareAndSet(x, p, grandparent);
+            x = grandparent;
+        }
+    }
+    
+    public boolean union(int a, int b) {
+        while (true) {
+            int ra = find(a);
+            int rb = find(b);
+            if (ra == rb)
+                return false;
+            
+            int low = Math.min(ra, rb);
+            int high = Math.max(ra, rb);
+            if (parent.compareAndSet(high, high, low)) {
+                count.decrementAndGet();
+                return true;
+            }
+        }
+    }
+    
+    public boolean connected(int a, int b) {
+        while (true) {
+            int ra = find(a);
+            int rb = find(b);
+            if (ra == rb)
+                return true;
+            // a root that is still a root means nobody merged them in between
+            if (parent.get(ra) == ra)
+                return false;
+        }
+    }
+    
+    public int count() {
+        return count.get();
+    }
+    
+    /**
+     * A flattened, single threaded copy that unions can continue on.
+     */
+    public UnionFind toUnionFind() {
+        int n = parent.length();
+        UnionFind sets = new UnionFind(0);
+        sets.parent = new int[n];
+        sets.rank = new byte[n];
+        sets.size = n;
+        sets.count = count();
+        for (int i = 0; i < n; i++) {
+            int root = find(i);
+            sets.parent[i] = root;
+            if (root != i)
+                sets.rank[root] = 1;
+        }
+        return sets;
+    }
+}
+
+/**
+ * Minimum spanning forest of a weighted graph, with every edge taken as undirected.
+ * Edges are kept in primitive arrays and ties between equal weights are broken by
+ * edge index, so both algorithms pick exactly the same edges.
+ */
+class MinimumSpanningForest {
+    final CsrGraph graph;
+    final int[] from;
+    final int[] to;
+    final double[] weight;
+    final boolean[] chosen;
+    int edgeCount;
+    double totalWeight;
+    
+    private MinimumSpanningForest(CsrGraph graph) {
+        this.graph = graph;
+        int m = graph.edgeCount();
+        from = new int[m];
+        to = new int[m];
+        weight = new double[m];
+        chosen = new boolean[m];
+        for (int u = 0; u < graph.nodeCount(); u++) {
+            for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                from[e] = u;
+                to[e] = graph.targets[e];
+                weight[e] = graph.weight(e);
+            }
+        }
+    }
+    
+    /**
+     * Sequential baseline: edges sorted by weight, then added unless they close a cycle.
+     */
+    public static MinimumSpanningForest kruskal(CsrGraph graph) {
+        MinimumSpanningForest forest = new MinimumSpanningForest(graph);
+        int m = forest.weight.length;
+        
+        // sort edges as (rank of weight, edge index) packed into longs, so no boxing
+        double[] sorted = forest.weight.clone();
+        Arrays.parallelSort(sorted);
+        long[] order = new long[m];
+        for (int e = 0; e < m; e++)
+            order[e] = (long)lowerBound(sorted, forest.weight[e]) << 32 | e;
+        Arrays.parallelSort(order);
+        
+        UnionFind sets = new UnionFind(graph.nodeCount());
+        for (int i = 0; i < m && sets.count() > 1; i++) {
+            int e = (int)order[i];
+            if (sets.union(forest.from[e], forest.to[e]))
+                forest.choose(e);
+        }
+        return forest;
+    }
+    
+    /**
+     * Parallel Boruvka: every component picks its lightest outgoing edge at once,
+     * all picked edges are merged, and edges inside a component are dropped, until
+     * no component has an edge left. Each round at least halves the components.
+     */
+    public static MinimumSpanningForest boruvka(CsrGraph graph) {
+        MinimumSpanningForest forest = new MinimumSpanningForest(graph);
+        int n = graph.nodeCount();
+        AtomicUnionFind sets = new AtomicUnionFind(n);
+        AtomicIntegerArray lightest = new AtomicIntegerArray(n);
+        int[] live = IntStream.range(0, forest.weight.length).filter(e -> forest.from[e] != forest.to[e]).toArray();
+        
+        while (live.length > 0) {
+            for (int i = 0; i < n; i++)
+                lightest.set(i, -1);
+            IntStream.of(live).parallel().forEach(e -> {
+                forest.offer(lightest, sets.find(forest.from[e]), e);
+                forest.offer(lightest, sets.find(forest.to[e]), e);
+            });
+            
+            // the same edge may be the lightest of both its components, only one union wins
+            IntStream.range(0, n).parallel().forEach(root -> {
+                int e = lightest.get(root);
+                if (e >= 0 && sets.union(forest.from[e], forest.to[e]))
+                    forest.chosen[e] = true;
+            });
+            live = IntStream.of(live).parallel().filter(e -> !sets.connected(forest.from[e], forest.to[e])).toArray();
+        }
+        
+        for (int e = 0; e < forest.chosen.length; e++) {
+            if (forest.chosen[e]) {
+                forest.chosen[e] = false;
+                forest.choose(e);
+            }
+        }
+        return forest;
+    }
+    
+    private void offer(AtomicIntegerArray lightest, int root, int e) {
+        while (true) {
+            int current = lightest.get(root);
+            if (current >= 0 && !lighter(e, current))
+                return;
+            if (lightest.compareAndSet(root, current, e))
+                return;
+        }
+    }
+    
+    private boolean lighter(int e, int f) {
+        return weight[e] < weight[f] || (weight[e] == weight[f] && e < f);
+    }
+    
+    private void choose(int e) {
+        chosen[e] = true;
+        edgeCount++;
+        totalWeight += weight[e];
+    }
+    
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    public int edgeCount() {
+        return edgeCount;
+    }
+    
+    public double totalWeight() {
+        return totalWeight;
+    }
+    
+    /**
+     * The forest as a graph with every node of the original one, and each chosen edge
+     * in both directions.
+     */
+    public GraphImpl toGraph() {
+        GraphImpl forest = new GraphImpl();
+        for (int u = 0; u < graph.nodeCount(); u++)
+            forest.addNode(new Node(graph.node(u).key));
+        for (int e = 0; e < chosen.length; e++) {
+            if (chosen[e])
+                forest.addUndirectedEdge(graph.node(from[e]).key, graph.node(to[e]).key, weight[e]);
+        }
+        return forest;
+    }
+}
+
+/**
+ * Strongly connected components of a CSR snapshot, using an iterative version of
+ * Tarjan's algorithm over primitive arrays, so long chains cannot overflow the stack.
+ * Components are numbered in reverse topological order of the condensation:
+ * edges between components always go from a higher to a lower number.
+ * Weakly connected components share no edges, so optionally each of them is
+ * handled by its own ForkJoin task.
+ */
+class StronglyConnectedComponents {
+    // weakly connected components smaller than this are batched into a single task
+    static final int BATCH = 4096;
+    
+    final CsrGraph graph;
+    final int[] component;
+    int count;
+    
+    private final int[] index;
+    private final int[] low;
+    private final int[] nextEdge;
+    private final boolean[] onStack;
+    
+    private StronglyConnectedComponents(CsrGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        component = new int[n];
+        index = new int[n];
+        low = new int[n];
+        nextEdge = new int[n];
+        onStack = new boolean[n];
+        Arrays.fill(index, -1);
+    }
+    
+    public static StronglyConnectedComponents compute(CsrGraph graph, boolean parallel) {
+        StronglyConnectedComponents scc = new StronglyConnectedComponents(graph);
+        int n = graph.nodeCount();
+        if (!parallel) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++)
+                all[i] = i;
+            scc.count = scc.tarjan(all, 0, n);
+            return scc;
+        }
+        
+        // group the nodes by weakly connected component
+        UnionFind weak = new UnionFind(n);
+        for (int u = 0; u < n; u++) {
+            for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++)
+                weak.union(u, graph.targets[e]);
+        }
+        int[] groupOf = new int[n];
+        int[] groupStart = new int[weak.count() + 1];
+        int[] rootGroup = new int[n];
+        Arrays.fill(rootGroup, -1);
+        int groups = 0;
+        for (int u = 0; u < n; u++) {
+            int root = weak.find(u);
+            if (rootGroup[root] < 0)
+                rootGroup[root] = groups++;
+            groupOf[u] = rootGroup[root];
+            groupStart[groupOf[u] + 1]++;
+        }
+        for (int g = 0; g < groups; g++)
+            groupStart[g + 1] += groupStart[g];
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(groupStart, groups);
+        for (int u = 0; u < n; u++)
+            members[fill[groupOf[u]]++] = u;
+        
+        // each task numbers its components from zero, then we shift them into place
+        int[] groupComponents = new int[groups];
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        int from = 0;
+        while (from < groups) {
+            int to = from;
+            int size = 0;
+            while (to < groups && (size == 0 || size + groupStart[to + 1] - groupStart[to] <= BATCH)) {
+                size += groupStart[to + 1] - groupStart[to];
+                to++;
+            }
+            final int first = from, last = to;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                for (int g = first; g < last; g++)
+                    groupComponents[g] = scc.tarjan(members, groupStart[g], groupStart[g + 1]);
+            }));
+            from = to;
+        }
+        ForkJoinTask.invokeAll(tasks);
+        
+        int[] base = new int[groups];
+        for (int g = 1; g < groups; g++)
+            base[g] = base[g - 1] + groupComponents[g - 1];
+        scc.count = groups == 0 ? 0 : base[groups - 1] + groupComponents[groups - 1];
+        IntStream.range(0, n).parallel().forEach(u -> scc.component[u] += base[groupOf[u]]);
+        return scc;
+    }
+    
+    /**
+     * Runs Tarjan from the given roots, numbering their components from zero.
+     * Returns the number of components found.
+     */
+    private int tarjan(int[] roots, int from, int to) {
+        int[] stack = new int[to - from];
+        int[] callStack = new int[to - from];
+        int stackTop = 0;
+        int callTop = 0;
+        int counter = 0;
+        int components = 0;
+        
+        for (int r = from; r < to; r++) {
+            int root = roots[r];
+            if (index[root] >= 0)
+                continue;
+            
+            index[root] = low[root] = counter++;
+            nextEdge[root] = graph.offsets[root];
+            stack[stackTop++] = root;
+            onStack[root] = true;
+            callStack[callTop++] = root;
+            
+            while (callTop > 0) {
+                int v = callStack[callTop - 1];
+                if (nextEdge[v] < graph.offsets[v + 1]) {
+                    int w = graph.targets[nextEdge[v]++];
+                    if (index[w] < 0) {
+                        // descend into w, as the recursive version would
+                        index[w] = low[w] = counter++;
+                        nextEdge[w] = graph.offsets[w];
+                        stack[stackTop++] = w;
+                        onStack[w] = true;
+                        callStack[callTop++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                
+                // all edges of v explored, return from it
+                callTop--;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = stack[--stackTop];
+                        onStack[w] = false;
+                        component[w] = components;
+                    } while (w != v);
+                    components++;
+                }
+                if (callTop > 0) {
+                    int parent = callStack[callTop - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        return components;
+    }
+    
+    public int count() {
+        return count;
+    }
+    
+    public int componentOf(Node node) {
+        return component[graph.requireId(node)];
+    }
+    
+    /**
+     * Component members, indexed by component number.
+     */
+    public List<List<Node>> components() {
+        List<List<Node>> result = new ArrayList<List<Node>>(count);
+        for (int c = 0; c < count; c++)
+            result.add(new ArrayList<Node>());
+        for (int u = 0; u < component.length; u++)
+            result.get(component[u]).add(graph.node(u));
+        return result;
+    }
+    
+    /**
+     * The DAG of components, where node "c" stands for component c.
+     * Edges live in the snapshot only, the nodes carry no edgesToNeighbors.
+     */
+    public CsrGraph condensation() {
+        int n = component.length;
+        
+        // group the members by component
+        int[] start = new int[count + 1];
+        for (int u = 0; u < n; u++)
+            start[component[u] + 1]++;
+        for (int c = 0; c < count; c++)
+            start[c + 1] += start[c];
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(start, count);
+        for (int u = 0; u < n; u++)
+            members[fill[component[u]]++] = u;
+        
+        // collect the distinct edges leaving each component
+        int[] lastSeen = new int[count];
+        Arrays.fill(lastSeen, -1);
+        int[] offsets = new int[count + 1];
+        int[] targets = new int[Math.min(graph.edgeCount(), 16)];
+        int edges = 0;
+        for (int c = 0; c < count; c++) {
+            lastSeen[c] = c;
+            for (int m = start[c]; m < start[c + 1]; m++) {
+                int u = members[m];
+                for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                    int d = component[graph.targets[e]];
+                    if (lastSeen[d] == c)
+                        continue;
+                    lastSeen[d] = c;
+                    if (edges == targets.length)
+                        targets = Arrays.copyOf(targets, Math.max(16, edges * 2));
+                    targets[edges++] = d;
+                }
+            }
+            offsets[c + 1] = edges;
+        }
+        
+        Node[] nodes = new Node[count];
+        SymbolTable symbols = new SymbolTable();
+        for (int c = 0; c < count; c++) {
+            nodes[c] = new Node(String.valueOf(c));
+            symbols.intern(nodes[c].key);
+        }
+        return CsrGraph.withTranspose(nodes, symbols, offsets, Arrays.copyOf(targets, edges), null);
+    }
+}
+
+/**
+ * Reusable scratch space for path queries over CSR snapshots.
+ * Visited marks are epoch stamps, so starting a new query is just incrementing the
+ * epoch instead of clearing (or allocating) arrays, and repeated queries allocate nothing.
+ * The scratch space does not keep any graph, it grows to the largest one searched.
+ * Not thread safe, use one per thread, e.g. the one forThread() keeps.
+ */
+class PathSearch {
+    private static final ThreadLocal<PathSearch> PER_THREAD = ThreadLocal.withInitial(PathSearch::new);
+    
+    private int epoch;
+    private int[] forwardStamp = new int[0], backwardStamp = new int[0];
+    private int[] forwardParent, backwardParent;
+    private int[] forwardDepth, backwardDepth;
+    private int[] forwardQueue, backwardQueue;
+    private int[] path;
+    private double[] distance;
+    private IndexedMinHeap heap;
+    private double pathWeight;
+    
+    /**
+     * The scratch space of the calling thread, large enough for graphs of nodeCount nodes.
+     */
+    public static PathSearch forThread(int nodeCount) {
+        PathSearch search = PER_THREAD.get();
+        search.ensureCapacity(nodeCount);
+        return search;
+    }
+    
+    public void ensureCapacity(int n) {
+        if (forwardStamp.length >= n)
+            return;
+        // fresh stamps are all 0, below any epoch still to come
+        forwardStamp = new int[n];
+        backwardStamp = new int[n];
+        forwardParent = new int[n];
+        backwardParent = new int[n];
+        forwardDepth = new int[n];
+        backwardDepth = new int[n];
+        forwardQueue = new int[n];
+        backwardQueue = new int[n];
+        path = new int[n];
+        distance = null;
+        heap = null;
+    }
+    
+    private void nextEpoch() {
+        if (++epoch == 0) {
+            // wrapped around after 2^32 queries, stale stamps could look current
+            Arrays.fill(forwardStamp, 0);
+            Arrays.fill(backwardStamp, 0);
+            epoch = 1;
+        }
+    }
+    
+    /**
+     * Bidirectional BFS, always expanding the smaller frontier by one level,
+     * until the two frontiers meet. The path is left in path(), its node count returned.
+     */
+    public int unweighted(CsrGraph graph, int source, int target) {
+        ensureCapacity(graph.nodeCount());
+        nextEpoch();
+        pathWeight = 0;
+        if (source == target) {
+            path[0] = source;
+            return 1;
+        }
+        
+        int forwardHead = 0, forwardTail = 0;
+        int backwardHead = 0, backwardTail = 0;
+        forwardQueue[forwardTail++] = source;
+        forwardStamp[source] = epoch;
+        forwardParent[source] = -1;
+        forwardDepth[source] = 0;
+        backwardQueue[backwardTail++] = target;
+        backwardStamp[target] = epoch;
+        backwardParent[target] = -1;
+        backwardDepth[target] = 0;
+        
+        int best = Integer.MAX_VALUE;
+        int meet = -1;
+        while (meet < 0 && forwardHead < forwardTail && backwardHead < backwardTail) {
+            // a whole level is expanded, so the shortest meeting within it wins
+            if (forwardTail - forwardHead <= backwardTail - backwardHead) {
+                int levelEnd = forwardTail;
+                while (forwardHead < levelEnd) {
+                    int u = forwardQueue[forwardHead++];
+                    for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                        int v = graph.targets[e];
+                        if (forwardStamp[v] == epoch)
+                            continue;
+                        
+                        forwardStamp[v] = epoch;
+                        forwardParent[v] = u;
+                        forwardDepth[v] = forwardDepth[u] + 1;
+                        forwardQueue[forwardTail++] = v;
+                        if (backwardStamp[v] == epoch && forwardDepth[v] + backwardDepth[v] < best) {
+                            best = forwardDepth[v] + backwardDepth[v];
+                            meet = v;
+                        }
+                    }
+                }
+            } else {
+                int levelEnd = backwardTail;
+                while (backwardHead < levelEnd) {
+                    int u = backwardQueue[backwardHead++];
+                    for (int e = graph.inOffsets[u]; e < graph.inOffsets[u + 1]; e++) {
+                        int v = graph.sources[e];
+                        if (backwardStamp[v] == epoch)
+                            continue;
+                        
+                        backwardStamp[v] = epoch;
+                        backwardParent[v] = u;
+                        backwardDepth[v] = backwardDepth[u] + 1;
+                        backwardQueue[backwardTail++] = v;
+                        if (forwardStamp[v] == epoch && forwardDepth[v] + backwardDepth[v] < best) {
+                            best = forwardDepth[v] + backwardDepth[v];
+                            meet = v;
+                        }
+                    }
+                }
+            }
+        }
+        if (meet < 0)
+            return 0;
+        
+        // source .. meet from the forward parents, then meet .. target from the backward ones
+        int length = forwardDepth[meet] + backwardDepth[meet] + 1;
+        int pos = forwardDepth[meet];
+        for (int v = meet; v >= 0; v = forwardParent[v])
+            path[pos--] = v;
+        pos = forwardDepth[meet];
+        for (int v = backwardParent[meet]; v >= 0; v = backwardParent[v])
+            path[++pos] = v;
+        pathWeight = length - 1;
+        return length;
+    }
+    
+    /**
+     * Dijkstra, or A* when a heuristic is given, stopping as soon as the target is settled.
+     * The heuristic must be consistent, settled nodes are not reopened.
+     * The path is left in path(), its node count returned.
+     */
+    public int weighted(CsrGraph graph, int source, int target, ToDoubleFunction<Node> heuristic) {
+        ensureCapacity(graph.nodeCount());
+        nextEpoch();
+        if (heap == null) {
+            distance = new double[forwardStamp.length];
+            heap = new IndexedMinHeap(forwardStamp.length);
+        }
+        try {
+            search(graph, source, target, heuristic);
+        } finally {
+            // a negative weight aborts the search midway, the heap must not keep its entries
+            heap.clear();
+        }
+        
+        if (backwardStamp[target] != epoch)
+            return 0;
+        
+        int length = 0;
+        for (int v = target; v >= 0; v = forwardParent[v])
+            length++;
+        int pos = length;
+        for (int v = target; v >= 0; v = forwardParent[v])
+            path[--pos] = v;
+        pathWeight = distance[target];
+        return length;
+    }
+    
+    private void search(CsrGraph graph, int source, int target, ToDoubleFunction<Node> heuristic) {
+        // forward stamps mark discovered nodes, backward stamps settled ones
+        distance[source] = 0;
+        forwardStamp[source] = epoch;
+        forwardParent[source] = -1;
+        heap.insertOrDecrease(source, heuristic == null ? 0 : heuristic.applyAsDouble(graph.node(source)));
+        
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            backwardStamp[u] = epoch;
+            if (u == target)
+                break;
+            
+            for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                int v = graph.targets[e];
+                if (backwardStamp[v] == epoch)
+                    continue;
+                
+                double weight = graph.weight(e);
+                if (weight < 0)
+                    throw new IllegalArgumentException("Negative weight on edge " + graph.node(u).key + " -> " + graph.node(v).key);
+                
+                double candidate = distance[u] + weight;
+                if (forwardStamp[v] == epoch && candidate >= distance[v])
+                    continue;
+                
+                forwardStamp[v] = epoch;
+                distance[v] = candidate;
+                forwardParent[v] = u;
+                heap.insertOrDecrease(v, heuristic == null ? candidate : candidate + heuristic.applyAsDouble(graph.node(v)));
+            }
+        }
+    }
+    
+    public int[] path() {
+        return path;
+    }
+    
+    /**
+     * Total weight of the last path found, or its number of edges for unweighted searches.
+     */
+    public double pathWeight() {
+        return pathWeight;
+    }
+    
+    List<Node> pathNodes(CsrGraph graph, int length) {
+        List<Node> nodes = new ArrayList<Node>(length);
+        for (int i = 0; i < length; i++)
+            nodes.add(graph.node(path[i]));
+        return nodes;
+    }
+}
+
+/**
+ * A binary min heap of int ids with double priorities, supporting decrease-key
+ * through a position index. Ids must be below the capacity given at construction.
+ */
+class IndexedMinHeap {
+    final int[] heap;
+    final int[] position;
+    final double[] priority;
+    int size;
+    
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        priority = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public boolean contains(int id) {
+        return position[id] >= 0;
+    }
+    
+    public void insertOrDecrease(int id, double value) {
+        if (position[id] < 0) {
+            position[id] = size;
+            heap[size++] = id;
+        } else if (value >= priority[id]) {
+            return;
+        }
+        priority[id] = value;
+        siftUp(position[id]);
+    }
+    
+    public int poll() {
+        int top = heap[0];
+        position[top] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+    
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            position[heap[i]] = -1;
+        size = 0;
+    }
+    
+    private void siftUp(int i) {
+        int id = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (priority[heap[parent]] <= priority[id])
+                break;
+            heap[i] = heap[parent];
+            position[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = id;
+        position[id] = i;
+    }
+    
+    private void siftDown(int i) {
+        int id = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && priority[heap[child + 1]] < priority[heap[child]])
+                child++;
+            if (priority[heap[child]] >= priority[id])
+                break;
+            heap[i] = heap[child];
+            position[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = id;
+        position[id] = i;
+    }
+}
+
+/**
+ * A graph as a bit packed adjacency matrix, 64 cells to a long, so it takes
+ * an eighth of the memory of a boolean[][] and no per row headers.
+ * Row i holds the neighbors of node i, which turns neighborhood unions into
+ * plain loops over longs that the JIT can vectorize.
+ */
+class BitMatrix {
+    final String[] keys;
+    final int size;
+    final int wordsPerRow;
+    final long[] bits;
+    
+    public BitMatrix(String[] keys) {
+        this.keys = keys;
+        this.size = keys.length;
+        this.wordsPerRow = (size + 63) >>> 6;
+        this.bits = new long[size * wordsPerRow];
+    }
+    
+    public static BitMatrix of(CsrGraph graph) {
+        String[] keys = new String[graph.nodeCount()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = graph.node(i).key;
+        
+        BitMatrix matrix = new BitMatrix(keys);
+        for (int i = 0; i < keys.length; i++) {
+            for (int e = graph.offsets[i]; e < graph.offsets[i + 1]; e++)
+                matrix.set(i, graph.targets[e]);
+        }
+        return matrix;
+    }
+    
+    /**
+     * Nodes get keyed by their index, "0" to "n-1". The matrix must be square.
+     */
+    public static BitMatrix of(boolean[][] cells) {
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i].length != cells.length)
+                throw new IllegalArgumentException("Row " + i + " has " + cells[i].length + " cells, expecting " + cells.length);
+        }
+        String[] keys = new String[cells.length];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = String.valueOf(i);
+        
+        BitMatrix matrix = new BitMatrix(keys);
+        for (int i = 0; i < cells.length; i++) {
+            for (int j = 0; j < cells[i].length; j++) {
+                if (cells[i][j])
+                    matrix.set(i, j);
+            }
+        }
+        return matrix;
+    }
+    
+    public boolean get(int from, int to) {
+        return (bits[from * wordsPerRow + (to >>> 6)] & (1L << to)) != 0;
+    }
+    
+    public void set(int from, int to) {
+        bits[from * wordsPerRow + (to >>> 6)] |= 1L << to;
+    }
+    
+    /**
+     * row[target] |= row[source], a word at a time.
+     */
+    public void orRow(int target, int source) {
+        orRow(bits, target * wordsPerRow, bits, source * wordsPerRow, wordsPerRow);
+    }
+    
+    private static void orRow(long[] into, int intoStart, long[] from, int fromStart, int words) {
+        // kept as a simple counted loop, so the JIT can vectorize it
+        for (int w = 0; w < words; w++)
+            into[intoStart + w] |= from[fromStart + w];
+    }
+    
+    public int rowCount(int row) {
+        int count = 0;
+        int start = row * wordsPerRow;
+        for (int w = 0; w < wordsPerRow; w++)
+            count += Long.bitCount(bits[start + w]);
+        return count;
+    }
+    
+    /**
+     * The matrix of paths: cell (i, j) is set when j can be reached from i through one or more edges.
+     * Rows are built over the strongly connected components, in reverse topological order,
+     * so every component ORs in the finished rows of its successors just once.
+     */
+    public BitMatrix transitiveClosure() {
+        CsrGraph graph = toCsr();
+        StronglyConnectedComponents scc = StronglyConnectedComponents.compute(graph, false);
+        int count = scc.count();
+        
+        long[] componentRows = new long[count * wordsPerRow];
+        int[] lastSeen = new int[count];
+        Arrays.fill(lastSeen, -1);
+        
+        // node ids grouped by component, a counting sort of scc.component
+        int[] memberStart = new int[count + 1];
+        for (int u = 0; u < size; u++)
+            memberStart[scc.component[u] + 1]++;
+        for (int c = 0; c < count; c++)
+            memberStart[c + 1] += memberStart[c];
+        int[] fill = Arrays.copyOf(memberStart, count);
+        int[] members = new int[size];
+        for (int u = 0; u < size; u++)
+            members[fill[scc.component[u]]++] = u;
+        
+        // successors always have lower component numbers, so their rows are complete
+        for (int c = 0; c < count; c++) {
+            int row = c * wordsPerRow;
+            for (int m = memberStart[c]; m < memberStart[c + 1]; m++) {
+                int u = members[m];
+                for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                    int v = graph.targets[e];
+                    componentRows[row + (v >>> 6)] |= 1L << v;
+                    
+                    int d = scc.component[v];
+                    if (d != c && lastSeen[d] != c) {
+                        lastSeen[d] = c;
+                        orRow(componentRows, row, componentRows, d * wordsPerRow, wordsPerRow);
+                    }
+                }
+            }
+        }
+        
+        BitMatrix closure = new BitMatrix(keys);
+        for (int u = 0; u < size; u++)
+            System.arraycopy(componentRows, scc.component[u] * wordsPerRow, closure.bits, u * wordsPerRow, wordsPerRow);
+        return closure;
+    }
+    
+    /**
+     * On a closed matrix, this is a single bit test.
+     */
+    public boolean reaches(int from, int to) {
+        return get(from, to);
+    }
+    
+    public CsrGraph toCsr() {
+        Node[] nodes = new Node[size];
+        SymbolTable symbols = new SymbolTable();
+        int[] offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = new Node(keys[i]);
+            symbols.intern(keys[i]);
+            offsets[i + 1] = offsets[i] + rowCount(i);
+        }
+        
+        int[] targets = new int[offsets[size]];
+        int e = 0;
+        for (int i = 0; i < size; i++) {
+            int start = i * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = bits[start + w];
+                while (word != 0) {
+                    targets[e++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        return CsrGraph.withTranspose(nodes, symbols, offsets, targets, null);
+    }
+    
+    public GraphImpl toGraph() {
+        return GraphImpl.of(toCsr());
+    }
+    
+    public boolean[][] toBooleans() {
+        boolean[][] cells = new boolean[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++)
+                cells[i][j] = get(i, j);
+        }
+        return cells;
+    }
+    
+    public long memoryBytes() {
+        return 8L * bits.length;
+    }
+}
+
+/**
+ * A compact binary file format for CSR snapshots, meant to be memory mapped.
+ * All numbers are little endian, and every section starts at a multiple of 8:
+ *
+ *   header       magic, version, node count, flags, edge count, key bytes, hash slots
+ *   offsets      int[n + 1]   outgoing edges, as in CsrGraph
+ *   targets      int[e]
+ *   inOffsets    int[n + 1]   incoming edges
+ *   sources      int[e]
+ *   weights      double[e]    only when flagged as weighted, for both directions
+ *   inWeights    double[e]
+ *   keyOffsets   int[n + 1]   where the UTF-8 bytes of every key start
+ *   hash         int[slots]   open addressing table of id + 1, 0 for empty slots
+ *   keys         byte[keyBytes]
+ *
+ * Every section is mapped on its own, and a single mapping cannot exceed 2GB, so that limit holds per section:
+ * about 536 million edges (268 million when weighted) and 2GB of key bytes. Offsets are ints, like in CsrGraph.
+ * write() refuses graphs beyond these limits rather than produce a file that cannot be mapped.
+ */
+class GraphFile {
+    static final int MAGIC = 0x48505247; // "GRPH"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int FLAG_WEIGHTED = 1;
+    
+    public static void write(CsrGraph graph, Path path) throws IOException {
+        int n = graph.nodeCount();
+        int e = graph.edgeCount();
+        boolean weighted = graph.weights != null;
+        
+        if ((weighted ? 8L : 4L) * e > Integer.MAX_VALUE)
+            throw new IOException("Too many edges for a graph file: " + e);
+        
+        byte[][] keys = new byte[n][];
+        int[] keyOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            keys[i] = graph.node(i).key.getBytes(StandardCharsets.UTF_8);
+            if ((long)keyOffsets[i] + keys[i].length > Integer.MAX_VALUE)
+                throw new IOException("Too many key bytes for a graph file");
+            keyOffsets[i + 1] = keyOffsets[i] + keys[i].length;
+        }
+        
+        int slots = hashSlots(n);
+        int[] hash = new int[slots];
+        for (int i = 0; i < n; i++) {
+            int slot = slotOf(graph.node(i).key.hashCode(), slots);
+            while (hash[slot] != 0)
+                slot = (slot + 1) & (slots - 1);
+            hash[slot] = i + 1;
+        }
+        
+        // written next to the target and moved over it, since truncating a file that is
+        // mapped elsewhere makes its readers fault on the pages that went away
+        Path parent = path.toAbsolutePath().getParent();
+        Path partial = Files.createTempFile(parent, path.getFileName().toString(), ".partial");
+        try {
+            writeSections(graph, partial, n, e, weighted, keys, keyOffsets, slots, hash);
+            Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+    
+    private static void writeSections(CsrGraph graph, Path path, int n, int e, boolean weighted,
+            byte[][] keys, int[] keyOffsets, int slots, int[] hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SectionWriter out = new SectionWriter(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(n);
+            out.putInt(weighted ? FLAG_WEIGHTED : 0);
+            out.putLong(e);
+            out.putLong(keyOffsets[n]);
+            out.putInt(slots);
+            out.align(HEADER_BYTES);
+            
+            out.putInts(graph.offsets);
+            out.putInts(graph.targets);
+            out.putInts(graph.inOffsets);
+            out.putInts(graph.sources);
+            if (weighted) {
+                out.putDoubles(graph.weights);
+                out.putDoubles(graph.inWeights);
+            }
+            out.putInts(keyOffsets);
+            out.putInts(hash);
+            for (byte[] key: keys)
+                out.putBytes(key);
+            out.flush();
+        }
+    }
+    
+    public static MappedGraph map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES)
+                throw new IOException("Not a graph file: " + path);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("Truncated graph file: " + path);
+            }
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a graph file: " + path);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported graph file version " + version + ": " + path);
+            
+            int n = header.getInt();
+            boolean weighted = (header.getInt() & FLAG_WEIGHTED) != 0;
+            long e = header.getLong();
+            long keyBytes = header.getLong();
+            int slots = header.getInt();
+            
+            SectionMapper in = new SectionMapper(channel, HEADER_BYTES);
+            IntBuffer offsets = in.ints(n + 1);
+            IntBuffer targets = in.ints(e);
+            IntBuffer inOffsets = in.ints(n + 1);
+            IntBuffer sources = in.ints(e);
+            DoubleBuffer weights = weighted ? in.doubles(e) : null;
+            DoubleBuffer inWeights = weighted ? in.doubles(e) : null;
+            IntBuffer keyOffsets = in.ints(n + 1);
+            IntBuffer hash = in.ints(slots);
+            ByteBuffer keys = in.bytes(keyBytes);
+            return new MappedGraph(n, offsets, targets, inOffsets, sources, weights, inWeights, keyOffsets, hash, keys);
+        }
+    }
+    
+    static int hashSlots(int n) {
+        int slots = 2;
+        while (slots < 2L * n)
+            slots <<= 1;
+        return slots;
+    }
+    
+    static int slotOf(int hashCode, int slots) {
+        return (hashCode ^ (hashCode >>> 16)) & (slots - 1);
+    }
+    
+    private static class SectionWriter {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        long written;
+        
+        SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+        }
+        
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+        
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            written += 4;
+        }
+        
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            written += 8;
+        }
+        
+        void putInts(int[] values) throws IOException {
+            for (int value: values)
+                putInt(value);
+            align(8);
+        }
+        
+        void putDoubles(double[] values) throws IOException {
+            for (double value: values) {
+                ensure(8);
+                buffer.putDouble(value);
+                written += 8;
+            }
+        }
+        
+        void putBytes(byte[] bytes) throws IOException {
+            ensure(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                channel.write(ByteBuffer.wrap(bytes));
+            } else {
+                buffer.put(bytes);
+            }
+            written += bytes.length;
+        }
+        
+        void align(int boundary) throws IOException {
+            while (written % boundary != 0) {
+                ensure(1);
+                buffer.put((byte)0);
+                written++;
+            }
+        }
+    }
+    
+    private static class SectionMapper {
+        final FileChannel channel;
+        long position;
+        
+        SectionMapper(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+        
+        ByteBuffer bytes(long length) throws IOException {
+            ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            position += (length + 7) & ~7L;
+            return section;
+        }
+        
+        IntBuffer ints(long count) throws IOException {
+            return bytes(4 * count).asIntBuffer();
+        }
+        
+        DoubleBuffer doubles(long count) throws IOException {
+            return bytes(8 * count).asDoubleBuffer();
+        }
+    }
+}
+
+/**
+ * A read only graph, straight over the memory mapped sections of a GraphFile.
+ * Nothing is copied onto the heap: nodes are created on demand from the mapped keys, and
+ * traversals read the mapped offsets and targets. Processes mapping the same file share its pages.
+ * Heavier algorithms run on a heap copy of the graph (see toCsr()), made on first use.
+ */
+class MappedGraph implements Graph, Adjacency {
+    final int nodeCount;
+    final IntBuffer offsets, targets;
+    final IntBuffer inOffsets, sources;
+    final DoubleBuffer weights, inWeights;
+    final IntBuffer keyOffsets;
+    final IntBuffer hash;
+    final ByteBuffer keys;
+    private CsrGraph heapCopy;
+    
+    MappedGraph(int nodeCount, IntBuffer offsets, IntBuffer targets,
+            IntBuffer inOffsets, IntBuffer sources,
+            DoubleBuffer weights, DoubleBuffer inWeights,
+            IntBuffer keyOffsets, IntBuffer hash, ByteBuffer keys) {
+        this.nodeCount = nodeCount;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.inOffsets = inOffsets;
+        this.sources = sources;
+        this.weights = weights;
+        this.inWeights = inWeights;
+        this.keyOffsets = keyOffsets;
+        this.hash = hash;
+        this.keys = keys;
+    }
+    
+    public int nodeCount() {
+        return nodeCount;
+    }
+    
+    public int edgeCount() {
+        return targets.limit();
+    }
+    
+    public String key(int id) {
+        int start = keyOffsets.get(id);
+        byte[] bytes = new byte[keyOffsets.get(id + 1) - start];
+        keys.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public Node node(int id) {
+        return new Node(key(id));
+    }
+    
+    public int idBound() {
+        return nodeCount;
+    }
+    
+    public int degree(int id) {
+        return offsets.get(id + 1) - offsets.get(id);
+    }
+    
+    public int neighbor(int id, int index) {
+        return targets.get(offsets.get(id) + index);
+    }
+    
+    public int idOf(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int slots = hash.limit();
+        int slot = GraphFile.slotOf(key.hashCode(), slots);
+        while (true) {
+            int id = hash.get(slot) - 1;
+            if (id < 0)
+                return -1;
+            if (keyEquals(id, bytes))
+                return id;
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+    
+    private boolean keyEquals(int id, byte[] bytes) {
+        int start = keyOffsets.get(id);
+        if (keyOffsets.get(id + 1) - start != bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (keys.get(start + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+    
+    int requireId(Node node) {
+        int id = idOf(node.key);
+        if (id < 0)
+            throw new RuntimeException("Node keyed \"" + node.key + "\" not found");
+        return id;
+    }
+    
+    public void clear() {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void addNode(Node node) {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void addEdge(String fromKey, String toKey) {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void addEdge(String fromKey, String toKey, double weight) {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void removeNode(String key) {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void fromAdjacencyMatrix(boolean[][] matrix) {
+        throw new UnsupportedOperationException("Mapped graphs are read only");
+    }
+    
+    public void print() {
+        for (int i = 0; i < nodeCount; i++) {
+            System.out.println("" + key(i) + ":[" + String.join(",", neighborKeys(i)) + "]");
+        }
+    }
+    
+    public String debugString() {
+        List<String> nodesStrings = new ArrayList<String>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodesStrings.add(key(i) + "[" + String.join(",", neighborKeys(i)) + "]");
+        }
+        return String.join(" ", nodesStrings);
+    }
+    
+    private List<String> neighborKeys(int id) {
+        List<String> keys = new ArrayList<String>();
+        for (int e = offsets.get(id); e < offsets.get(id + 1); e++)
+            keys.add(key(targets.get(e)));
+        return keys;
+    }
+    
+    public void depthFirstSearch(Node start, Consumer<Node> consumer) {
+        depthFirstSearch(requireId(start), id -> consumer.accept(node(id)));
+    }
+    
+    public void depthFirstSearch(int start, IntConsumer consumer) {
+        int[] stack = new int[nodeCount];
+        boolean[] visited = new boolean[nodeCount];
+        int top = 0;
+        
+        stack[top++] = start;
+        visited[start] = true;
+        while (top > 0) {
+            int current = stack[--top];
+            consumer.accept(current);
+            
+            for (int e = offsets.get(current), end = offsets.get(current + 1); e < end; e++) {
+                int neighbor = targets.get(e);
+                if (visited[neighbor])
+                    continue;
+                
+                stack[top++] = neighbor;
+                visited[neighbor] = true;
+            }
+        }
+    }
+    
+    public void breadthFirstSearch(Node start, Consumer<Node> consumer) {
+        breadthFirstSearch(requireId(start), id -> consumer.accept(node(id)));
+    }
+    
+    public void breadthFirstSearch(int start, IntConsumer consumer) {
+        int[] queue = new int[nodeCount];
+        boolean[] visited = new boolean[nodeCount];
+        int head = 0;
+        int tail = 0;
+        
+        queue[tail++] = start;
+        visited[start] = true;
+        while (head < tail) {
+            int current = queue[head++];
+            consumer.accept(current);
+            
+            for (int e = offsets.get(current), end = offsets.get(current + 1); e < end; e++) {
+                int neighbor = targets.get(e);
+                if (visited[neighbor])
+                    continue;
+                
+                queue[tail++] = neighbor;
+                visited[neighbor] = true;
+            }
+        }
+    }
+    
+    public Stream<Node> depthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), true);
+    }
+    
+    public Stream<Node> breadthFirstStream(Node start) {
+        return LazyTraversal.stream(this, requireId(start), false);
+    }
+    
+    public Stream<Node> reachableStream(Node start) {
+        return ReachableSpliterator.stream(this, requireId(start), false);
+    }
+    
+    public Graph invertDirections() {
+        // zero copy, as with CsrGraph
+        return new MappedGraph(nodeCount, inOffsets, sources, offsets, targets, inWeights, weights, keyOffsets, hash, keys);
+    }
+    
+    /**
+     * Copies the graph onto the heap, once.
+     */
+    public synchronized CsrGraph toCsr() {
+        if (heapCopy != null)
+            return heapCopy;
+        
+        Node[] nodes = new Node[nodeCount];
+        SymbolTable symbols = new SymbolTable();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = node(i);
+            symbols.intern(nodes[i].key);
+        }
+        int[] heapOffsets = new int[nodeCount + 1];
+        offsets.get(0, heapOffsets);
+        int[] heapTargets = new int[edgeCount()];
+        targets.get(0, heapTargets);
+        double[] heapWeights = null;
+        if (weights != null) {
+            heapWeights = new double[edgeCount()];
+            weights.get(0, heapWeights);
+        }
+        heapCopy = CsrGraph.withTranspose(nodes, symbols, heapOffsets, heapTargets, heapWeights);
+        return heapCopy;
+    }
+    
+    private Node onHeap(Node node) {
+        return toCsr().node(requireId(node));
+    }
+    
+    public List<Node> findPath(Node source, Node target) {
+        return toCsr().findPath(onHeap(source), onHeap(target));
+    }
+    
+    public boolean isAcyclic() {
+        return toCsr().isAcyclic();
+    }
+    
+    public boolean[][] toAdjacencyMatrix() {
+        return toCsr().toAdjacencyMatrix();
+    }
+    
+    public List<Node> topologicalOrder() {
+        return toCsr().topologicalOrder();
+    }
+    
+    public List<List<Node>> stronglyConnectedComponents() {
+        return toCsr().stronglyConnectedComponents();
+    }
+    
+    public Graph condensation() {
+        return toCsr().condensation();
+    }
+    
+    public int numberOfTrees() {
+        return toCsr().numberOfTrees();
+    }
+}
+
+/**
+ * Bulk loading of edges, instead of one addEdge() call (and lookup) per edge.
+ * Keys are dictionary encoded a batch at a time, edges are packed into longs,
+ * sorted and deduplicated in parallel, and the adjacency is built in one pass at the end.
+ * Node ids follow the order in which keys first appear, neighbors are sorted by id.
+ * A loader builds a single graph: its edges are released by build(), and the graph keeps
+ * the loader's symbol table, so adding to a loader that has built is refused.
+ */
+class GraphLoader {
+    static final int BATCH = 1 << 16;
+    
+    private final SymbolTable symbols = new SymbolTable();
+    private long[] edges = new long[1024];
+    private int edgeCount;
+    
+    // the batch being filled, from and to keys alternating
+    private final String[] batch = new String[2 * BATCH];
+    private final int[] codes = new int[2 * BATCH];
+    private int batchSize;
+    private boolean built;
+    
+    private final Stats stats = new Stats();
+    
+    static class Stats {
+        long edgesRead;
+        long distinctEdges;
+        int nodes;
+        long encodeNanos;
+        long sortNanos;
+        long buildNanos;
+        // the most heap in use at the points the loader sampled it, batch ends and build steps
+        long peakHeapBytes;
+        
+        public String toString() {
+            return "read " + edgesRead + " edges, " + distinctEdges + " distinct, " + nodes + " nodes"
+                + ", encode " + encodeNanos / 1000000 + "ms, sort " + sortNanos / 1000000 + "ms, build " + buildNanos / 1000000 + "ms"
+                + ", peak heap " + peakHeapBytes / (1024 * 1024) + "MB";
+        }
+    }
+    
+    public GraphLoader add(String fromKey, String toKey) {
+        if (built)
+            throw new IllegalStateException("This loader already built its graph");
+        batch[batchSize++] = fromKey;
+        batch[batchSize++] = toKey;
+        if (batchSize == batch.length)
+            encodeBatch();
+        return this;
+    }
+    
+    public GraphLoader addAll(Iterator<String[]> pairs) {
+        while (pairs.hasNext()) {
+            String[] pair = pairs.next();
+            add(pair[0], pair[1]);
+        }
+        return this;
+    }
+    
+    public GraphLoader addAll(Stream<String[]> pairs) {
+        return addAll(pairs.iterator());
+    }
+    
+    /**
+     * Reads one "from to" pair per line, separated by whitespace.
+     * Blank lines and lines starting with '#' are skipped.
+     */
+    public GraphLoader readEdgeList(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int fromStart = skipSpaces(line, 0);
+                if (fromStart == line.length() || line.charAt(fromStart) == '#')
+                    continue;
+                
+                int fromEnd = skipWord(line, fromStart);
+                int toStart = skipSpaces(line, fromEnd);
+                int toEnd = skipWord(line, toStart);
+                if (toStart == toEnd || skipSpaces(line, toEnd) != line.length())
+                    throw new IOException("Expecting two keys on line " + lineNumber + " of " + file + ": \"" + line + "\"");
+                
+                add(line.substring(fromStart, fromEnd), line.substring(toStart, toEnd));
+            }
+        }
+        return this;
+    }
+    
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos)))
+            pos++;
+        return pos;
+    }
+    
+    private static int skipWord(String line, int pos) {
+        while (pos < line.length() && !Character.isWhitespace(line.charAt(pos)))
+            pos++;
+        return pos;
+    }
+    
+    private void encodeBatch() {
+        long start = System.nanoTime();
+        
+        // lookups don't modify the dictionary, so they can run in parallel
+        int size = batchSize;
+        IntStream.range(0, size).parallel().forEach(i -> codes[i] = symbols.idOf(batch[i]));
+        
+        // new keys get their ids in order of appearance
+        for (int i = 0; i < size; i++) {
+            if (codes[i] < 0)
+                codes[i] = symbols.intern(batch[i]);
+        }
+        
+        if (edgeCount + size / 2 > edges.length)
+            edges = Arrays.copyOf(edges, Math.max(edgeCount + size / 2, edges.length * 2));
+        for (int i = 0; i < size; i += 2)
+            edges[edgeCount++] = ((long)codes[i] << 32) | codes[i + 1];
+        
+        stats.edgesRead += size / 2;
+        Arrays.fill(batch, 0, size, null);
+        batchSize = 0;
+        stats.encodeNanos += System.nanoTime() - start;
+        sampleHeap();
+    }
+    
+    public CsrGraph build() {
+        if (built)
+            throw new IllegalStateException("This loader already built its graph");
+        built = true;
+        encodeBatch();
+        int n = symbols.size();
+        
+        // sorting by (from, to) groups the edges by source and puts duplicates next to each other
+        long start = System.nanoTime();
+        Arrays.parallelSort(edges, 0, edgeCount);
+        int distinct = 0;
+        for (int i = 0; i < edgeCount; i++) {
+            if (distinct == 0 || edges[i] != edges[distinct - 1])
+                edges[distinct++] = edges[i];
+        }
+        stats.sortNanos = System.nanoTime() - start;
+        sampleHeap();
+        
+        start = System.nanoTime();
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[distinct];
+        for (int i = 0; i < distinct; i++) {
+            offsets[(int)(edges[i] >>> 32) + 1]++;
+            targets[i] = (int)edges[i];
+        }
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] += offsets[i];
+        // edges and targets are both alive here, the high point of the build
+        sampleHeap();
+        edges = new long[0];
+        edgeCount = 0;
+        
+        Node[] nodes = new Node[n];
+        for (int i = 0; i < n; i++)
+            nodes[i] = new Node(symbols.key(i));
+        CsrGraph graph = CsrGraph.withTranspose(nodes, symbols, offsets, targets, null);
+        stats.buildNanos = System.nanoTime() - start;
+        
+        stats.nodes = n;
+        stats.distinctEdges = distinct;
+        sampleHeap();
+        return graph;
+    }
+    
+    /**
+     * Same as build(), with the edges copied into the nodes of a mutable graph.
+     */
+    public GraphImpl buildGraph() {
+        return GraphImpl.of(build());
+    }
+    
+    public Stats stats() {
+        return stats;
+    }
+    
+    /**
+     * Samples the heap in use rather than the pools' peak usage, which is JVM wide
+     * and could only be made to cover this load by resetting it for everyone else.
+     */
+    private void sampleHeap() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        stats.peakHeapBytes = Math.max(stats.peakHeapBytes, used);
+    }
+}
+
+/**
+ * A Graph that many threads can write to while others traverse it.
+ * Writers only lock the stripe of the node whose edges they change, plus a shared lock
+ * that keeps snapshots consistent. Readers never lock while traversing: they walk an
+ * immutable CSR snapshot, which is rebuilt only when the write epoch has moved on
+ * (and, optionally, the current one is older than maxStalenessMillis).
+ * Removing nodes is rare and takes the exclusive lock; the nodes with edges into the removed one
+ * are found through an index of sources per key, so only those are touched.
+ */
+class ConcurrentGraph implements Graph {
+    static final int STRIPES = 64;
+    
+    private final ConcurrentHashMap<String, Vertex> index = new ConcurrentHashMap<String, Vertex>();
+    // keys of the nodes with an edge into each key
+    private final ConcurrentHashMap<String, Set<String>> sources = new ConcurrentHashMap<String, Set<String>>();
+    // insertion order, removed nodes are left in place until the next snapshot drops them
+    private final ConcurrentLinkedQueue<Vertex> order = new ConcurrentLinkedQueue<Vertex>();
+    private final AtomicInteger removedInOrder = new AtomicInteger();
+    private final Object[] stripes = new Object[STRIPES];
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock(true);
+    private final AtomicLong epoch = new AtomicLong();
+    private final long maxStalenessNanos;
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // islands, ignoring edge directions, kept up to date while adding; null after removals until asked for again.
+    // Guarded by islandLock, which also serializes the creation of nodes so each gets its set once
+    private UnionFind components = new UnionFind(0);
+    private final Object islandLock = new Object();
+    
+    private static class Vertex extends Node {
+        // its set in components
+        int island = -1;
+        
+        Vertex(String key) {
+            super(key);
+        }
+    }
+    
+    private static class Snapshot {
+        final long epoch;
+        final long builtAt;
+        final CsrGraph graph;
+        
+        Snapshot(long epoch, long builtAt, CsrGraph graph) {
+            this.epoch = epoch;
+            this.builtAt = builtAt;
+            this.graph = graph;
+        }
+    }
+    
+    public ConcurrentGraph() {
+        this(0);
+    }
+    
+    public ConcurrentGraph(long maxStalenessMillis) {
+        this.maxStalenessNanos = maxStalenessMillis * 1000000;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+    
+    private Object stripeOf(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+    
+    private Vertex nodeFor(String key) {
+        Vertex node = index.get(key);
+        if (node != null)
+            return node;
+        
+        Vertex created = new Vertex(key);
+        return publish(created) ? created : index.get(key);
+    }
+    
+    /**
+     * Makes the node visible, unless another with its key got there first.
+     */
+    private boolean publish(Vertex node) {
+        synchronized (islandLock) {
+            if (index.putIfAbsent(node.key, node) != null)
+                return false;
+            if (components != null)
+                node.island = components.add();
+            order.add(node);
+            return true;
+        }
+    }
+    
+    private void join(Vertex a, Vertex b) {
+        synchronized (islandLock) {
+            if (components != null)
+                components.union(a.island, b.island);
+        }
+    }
+    
+    private Set<String> sourcesOf(String key) {
+        return sources.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+    }
+    
+    public void clear() {
+        structure.writeLock().lock();
+        try {
+            index.clear();
+            sources.clear();
+            order.clear();
+            removedInOrder.set(0);
+            synchronized (islandLock) {
+                components = new UnionFind(0);
+            }
+            epoch.incrementAndGet();
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds a copy of the node along with its edges, so the caller's node stays its own.
+     * Every edge must lead to a node already in the graph (or to the node itself).
+     */
+    public void addNode(Node node) {
+        structure.readLock().lock();
+        try {
+            if (index.containsKey(node.key))
+                return;
+            
+            Vertex copy = new Vertex(node.key);
+            for (int i = 0; i < node.edgesToNeighbors.size(); i++) {
+                String toKey = node.edgesToNeighbors.get(i);
+                if (!toKey.equals(node.key) && !index.containsKey(toKey))
+                    throw new RuntimeException("Node keyed \"" + toKey + "\" not found");
+                int edge = copy.edgesToNeighbors.indexOf(toKey);
+                if (edge < 0) {
+                    edge = copy.edgesToNeighbors.size();
+                    copy.edgesToNeighbors.add(toKey);
+                }
+                copy.setWeight(edge, node.weightOf(i));
+            }
+            
+            if (publish(copy)) {
+                for (String toKey: copy.edgesToNeighbors) {
+                    sourcesOf(toKey).add(copy.key);
+                    join(copy, index.get(toKey));
+                }
+                epoch.incrementAndGet();
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+    
+    public void addEdge(String fromKey, String toKey) {
+        addEdge(fromKey, toKey, 1.0);
+    }
+    
+    public void addEdge(String fromKey, String toKey, double weight) {
+        structure.readLock().lock();
+        try {
+            Vertex fromNode = nodeFor(fromKey);
+            Vertex toNode = nodeFor(toKey);
+            boolean added = false;
+            synchronized (stripeOf(fromKey)) {
+                int edge = fromNode.edgesToNeighbors.indexOf(toKey);
+                if (edge < 0) {
+                    edge = fromNode.edgesToNeighbors.size();
+                    fromNode.edgesToNeighbors.add(toKey);
+                    sourcesOf(toKey).add(fromKey);
+                    added = true;
+                }
+                fromNode.setWeight(edge, weight);
+            }
+            if (added)
+                join(fromNode, toNode);
+            epoch.incrementAndGet();
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+    
+    public void removeNode(String key) {
+        structure.writeLock().lock();
+        try {
+            Vertex removed = index.remove(key);
+            if (removed == null)
+                return;
+            removedInOrder.incrementAndGet();
+            // unions cannot be undone, the next count starts over
+            synchronized (islandLock) {
+                components = null;
+            }
+            
+            Set<String> from = sources.remove(key);
+            if (from != null) {
+                for (String source: from) {
+                    Node n = index.get(source);
+                    if (n != null)
+                        n.removeEdge(key);
+                }
+            }
+            for (String toKey: removed.edgesToNeighbors) {
+                Set<String> to = sources.get(toKey);
+                if (to != null)
+                    to.remove(key);
+            }
+            epoch.incrementAndGet();
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+    
+    public void fromAdjacencyMatrix(boolean[][] matrix) {
+        GraphImpl loaded = new GraphImpl();
+        loaded.fromAdjacencyMatrix(matrix);
+        structure.writeLock().lock();
+        try {
+            index.clear();
+            sources.clear();
+            order.clear();
+            removedInOrder.set(0);
+            synchronized (islandLock) {
+                components = null;
+            }
+            for (Node n: loaded.nodes) {
+                // copied, since the loaded graph owns the edges of its nodes
+                Vertex copy = new Vertex(n.key);
+                copy.edgesToNeighbors.addAll(n.edgesToNeighbors);
+                index.put(copy.key, copy);
+                order.add(copy);
+                for (String toKey: copy.edgesToNeighbors)
+                    sourcesOf(toKey).add(copy.key);
+            }
+            epoch.incrementAndGet();
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * The latest snapshot, rebuilt if writes happened since it was taken.
+     * While the exclusive lock is held for copying, writers wait, readers of older snapshots don't.
+     * The snapshot gets its own copies of the nodes, so later writes never show through it.
+     */
+    public CsrGraph snapshot() {
+        Snapshot current = snapshot;
+        if (isFresh(current))
+            return current.graph;
+        
+        // while another reader rebuilds it, keep serving the older snapshot rather than waiting
+        boolean rebuilder = rebuilding.compareAndSet(false, true);
+        if (!rebuilder && current != null)
+            return current.graph;
+        
+        structure.writeLock().lock();
+        try {
+            // another reader may have rebuilt it while we waited
+            current = snapshot;
+            if (isFresh(current))
+                return current.graph;
+            
+            if (removedInOrder.getAndSet(0) > 0)
+                order.removeIf(n -> index.get(n.key) != n);
+            List<Node> copies = new ArrayList<Node>(index.size());
+            for (Node n: order) {
+                Node copy = new Node(n.key);
+                copy.edgesToNeighbors.addAll(n.edgesToNeighbors);
+                if (n.edgeWeights != null)
+                    copy.edgeWeights = n.edgeWeights.clone();
+                copies.add(copy);
+            }
+            
+            long at = epoch.get();
+            current = new Snapshot(at, System.nanoTime(), CsrGraph.of(copies));
+            snapshot = current;
+            return current.graph;
+        } finally {
+            structure.writeLock().unlock();
+            if (rebuilder)
+                rebuilding.set(false);
+        }
+    }
+    
+    private boolean isFresh(Snapshot s) {
+        if (s == null)
+            return false;
+        return s.epoch == epoch.get() || System.nanoTime() - s.builtAt < maxStalenessNanos;
+    }
+    
+    public long epoch() {
+        return epoch.get();
+    }
+    
+    public void print() {
+        snapshot().print();
+    }
+    
+    public String debugString() {
+        return snapshot().debugString();
+    }
+    
+    public void depthFirstSearch(Node start, Consumer<Node> consumer) {
+        snapshot().depthFirstSearch(start, consumer);
+    }
+    
+    public void breadthFirstSearch(Node start, Consumer<Node> consumer) {
+        snapshot().breadthFirstSearch(start, consumer);
+    }
+    
+    public Stream<Node> depthFirstStream(Node start) {
+        return snapshot().depthFirstStream(start);
+    }
+    
+    public Stream<Node> breadthFirstStream(Node start) {
+        return snapshot().breadthFirstStream(start);
+    }
+    
+    public Stream<Node> reachableStream(Node start) {
+        return snapshot().reachableStream(start);
+    }
+    
+    public List<Node> findPath(Node source, Node target) {
+        return snapshot().findPath(source, target);
+    }
+    
+    public boolean isAcyclic() {
+        return snapshot().isAcyclic();
+    }
+    
+    public boolean[][] toAdjacencyMatrix() {
+        return snapshot().toAdjacencyMatrix();
+    }
+    
+    public Graph invertDirections() {
+        return snapshot().invertDirections();
+    }
+    
+    public List<Node> topologicalOrder() {
+        return snapshot().topologicalOrder();
+    }
+    
+    public List<List<Node>> stronglyConnectedComponents() {
+        return snapshot().stronglyConnectedComponents();
+    }
+    
+    public Graph condensation() {
+        return snapshot().condensation();
+    }
+    
+    /**
+     * Number of islands, ignoring edge directions. Kept up to date as nodes and edges are added,
+     * so polling it is O(1) and needs no snapshot; the first call after a removal recounts
+     * every island synchronously, holding off writers meanwhile.
+     */
+    public int numberOfTrees() {
+        synchronized (islandLock) {
+            if (components != null)
+                return components.count();
+        }
+        structure.writeLock().lock();
+        try {
+            synchronized (islandLock) {
+                if (components == null)
+                    components = recount();
+                return components.count();
+            }
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+    
+    private UnionFind recount() {
+        UnionFind sets = new UnionFind(0);
+        for (Vertex n: index.values())
+            n.island = sets.add();
+        for (Vertex n: index.values()) {
+            for (String toKey: n.edgesToNeighbors)
+                sets.union(n.island, index.get(toKey).island);
+        }
+        return sets;
+    }
+}
+
+/**
+ * Read access to int indexed adjacency lists, as kept by GraphImpl, CsrGraph and MappedGraph.
+ * Node ids are below idBound(), the neighbors of node i are neighbor(i, 0) .. neighbor(i, degree(i) - 1).
+ */
+interface Adjacency {
+    public int idBound();
+    public int degree(int id);
+    public int neighbor(int id, int index);
+    public Node node(int id);
+}
+
+/**
+ * A lazy DFS or BFS, visiting the same nodes in the same order as the Consumer based versions,
+ * but only as far as the caller keeps asking. Visited nodes are kept in a hash set that
+ * grows with the visit, so stopping after a few hops costs a few hops, whatever the graph size.
+ */
+class LazyTraversal implements Iterator<Node> {
+    final Adjacency graph;
+    final boolean depthFirst;
+    private int[] frontier = new int[16];
+    private int head, tail;
+    private final IntHashSet visited = new IntHashSet();
+    
+    public LazyTraversal(Adjacency graph, int start, boolean depthFirst) {
+        this.graph = graph;
+        this.depthFirst = depthFirst;
+        frontier[tail++] = start;
+        visited.add(start);
+    }
+    
+    public static Stream<Node> stream(Adjacency graph, int start, boolean depthFirst) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new LazyTraversal(graph, start, depthFirst),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+    
+    public boolean hasNext() {
+        return head < tail;
+    }
+    
+    public Node next() {
+        if (head >= tail)
+            throw new NoSuchElementException();
+        
+        int current = depthFirst ? frontier[--tail] : frontier[head++];
+        for (int i = 0, degree = graph.degree(current); i < degree; i++) {
+            int neighbor = graph.neighbor(current, i);
+            if (visited.add(neighbor))
+                push(neighbor);
+        }
+        return graph.node(current);
+    }
+    
+    private void push(int id) {
+        if (tail == frontier.length) {
+            // reuse the space in front of the queue before growing
+            int pending = tail - head;
+            if (head > frontier.length / 2) {
+                System.arraycopy(frontier, head, frontier, 0, pending);
+            } else {
+                frontier = Arrays.copyOfRange(frontier, head, head + frontier.length * 2);
+            }
+            head = 0;
+            tail = pending;
+        }
+        frontier[tail++] = id;
+    }
+}
+
+/**
+ * Unordered reachability as a splittable source, for parallel streams.
+ * Every split owns a stack of pending nodes and hands half of it to the new split;
+ * nodes are claimed in a shared atomic bitset, so each is reported exactly once.
+ */
+class ReachableSpliterator implements Spliterator<Node> {
+    // nodes expanded eagerly when a split finds too few pending nodes to share
+    static final int EXPAND_ON_SPLIT = 64;
+    
+    final Adjacency graph;
+    final AtomicLongArray claimed;
+    private int[] stack;
+    private int top;
+    // expanded but not yet reported, reported before anything on the stack
+    private int[] ready = new int[0];
+    private int readyCount;
+    
+    public ReachableSpliterator(Adjacency graph, int start) {
+        this(graph, new AtomicLongArray((graph.idBound() + 63) >>> 6), new int[] { start }, 1);
+        claim(start);
+    }
+    
+    private ReachableSpliterator(Adjacency graph, AtomicLongArray claimed, int[] stack, int top) {
+        this.graph = graph;
+        this.claimed = claimed;
+        this.stack = stack;
+        this.top = top;
+    }
+    
+    public static Stream<Node> stream(Adjacency graph, int start, boolean parallel) {
+        return StreamSupport.stream(new ReachableSpliterator(graph, start), parallel);
+    }
+    
+    private boolean claim(int id) {
+        int w = id >>> 6;
+        long mask = 1L << id;
+        while (true) {
+            long current = claimed.get(w);
+            if ((current & mask) != 0)
+                return false;
+            if (claimed.compareAndSet(w, current, current | mask))
+                return true;
+        }
+    }
+    
+    private int expand() {
+        int current = stack[--top];
+        for (int i = 0, degree = graph.degree(current); i < degree; i++) {
+            int neighbor = graph.neighbor(current, i);
+            if (!claim(neighbor))
+                continue;
+            if (top == stack.length)
+                stack = Arrays.copyOf(stack, Math.max(16, top * 2));
+            stack[top++] = neighbor;
+        }
+        return current;
+    }
+    
+    public boolean tryAdvance(Consumer<? super Node> action) {
+        if (readyCount > 0) {
+            action.accept(graph.node(ready[--readyCount]));
+            return true;
+        }
+        if (top == 0)
+            return false;
+        
+        action.accept(graph.node(expand()));
+        return true;
+    }
+    
+    public Spliterator<Node> trySplit() {
+        // grow the frontier a little, so there is something to share
+        for (int i = 0; i < EXPAND_ON_SPLIT && top > 0 && top < 2; i++) {
+            if (readyCount == ready.length)
+                ready = Arrays.copyOf(ready, Math.max(8, readyCount * 2));
+            ready[readyCount++] = expand();
+        }
+        if (top < 2)
+            return null;
+        
+        int half = top / 2;
+        int[] given = Arrays.copyOfRange(stack, 0, half);
+        System.arraycopy(stack, half, stack, 0, top - half);
+        top -= half;
+        return new ReachableSpliterator(graph, claimed, given, half);
+    }
+    
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+    
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.NONNULL;
     }
 }
-interface Graph {
-    public void clear();
-    public void addNode(Node node);
-    public void addEdge(String fromKey, String toKey);
-    public void removeNode(String key);
+
+/**
+ * A set of non negative ints, with open addressing and linear probing.
+ */
+class IntHashSet {
+    // ids are stored plus one, so zero marks an empty slot
+    private int[] slots = new int[16];
+    private int size;
     
-    public void depthFirstSearch(Node start, Consumer<Node> consumer);
-    public void breadthFirstSearch(Node start, Consumer<Node> consumer);
+    public boolean add(int id) {
+        if (2 * (size + 1) > slots.length)
+            grow();
+        
+        int mask = slots.length - 1;
+        int slot = mix(id) & mask;
+        while (slots[slot] != 0) {
+            if (slots[slot] == id + 1)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+        size++;
+        return true;
+    }
     
-    public List<Node> findPath(Node source, Node target);
-    public boolean isAcyclic();
+    public boolean contains(int id) {
+        int mask = slots.length - 1;
+        int slot = mix(id) & mask;
+        while (slots[slot] != 0) {
+            if (slots[slot] == id + 1)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
     
-    public void fromAdjacencyMatrix(boolean[][] matrix);
-    public boolean[][] toAdjacencyMatrix();
-    public Graph invertDirections();
-    public List<Node> topologicalOrder();
-    public int numberOfTrees();
+    public int size() {
+        return size;
+    }
     
-    public void print();
-    public String debugString();
+    private void grow() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        size = 0;
+        for (int stored: old) {
+            if (stored != 0)
+                add(stored - 1);
+        }
+    }
+    
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 }
-class GraphImpl implements Graph {
-    List<Node> nodes = new ArrayList<Node>();
+
+/**
+ * Interns string keys into dense int ids, 0, 1, 2... in order of first appearance.
+ * All key characters live in one shared char arena and the lookup table is open addressing
+ * over plain ints, so a key costs its characters plus a few ints, instead of
+ * a String, a boxed Integer and a hash map entry.
+ */
+class SymbolTable {
+    private char[] arena = new char[256];
+    private int arenaSize;
+    // the characters of key i are arena[starts[i]] .. arena[starts[i + 1] - 1]
+    private int[] starts = new int[17];
+    private int[] hashes = new int[16];
+    // ids plus one, zero marks an empty slot
+    private int[] slots = new int[32];
+    private int size;
     
-    public void clear() {
-        nodes.clear();
+    public int size() {
+        return size;
     }
     
-    public void addNode(Node node) {
-        if (!nodes.contains(node))
-            nodes.add(node);
+    /**
+     * The id of the key, or -1 if it was never interned.
+     * Lookups don't modify the table, so any number of threads may run them while no one interns.
+     */
+    public int idOf(String key) {
+        int hash = key.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && keyEquals(id, key))
+                return id;
+        }
+        return -1;
     }
     
-    public void addEdge(String fromKey, String toKey) {
-        // get node, if none exists, create it
-        Node fromNode = getNode(fromKey);
-        if (fromNode == null) {
-            fromNode = new Node(fromKey);
-            addNode(fromNode);
+    public int intern(String key) {
+        int hash = key.hashCode();
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && keyEquals(id, key))
+                return id;
         }
         
-        if (!fromNode.edgesToNeighbors.contains(toKey))
-            fromNode.edgesToNeighbors.add(toKey);
+        int id = size++;
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+            starts = Arrays.copyOf(starts, id * 2 + 1);
+        }
+        if (arenaSize + key.length() > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arenaSize + key.length(), arena.length * 2));
+        key.getChars(0, key.length(), arena, arenaSize);
+        arenaSize += key.length();
+        starts[id + 1] = arenaSize;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
         
-        // do the same for toKey
-        Node toNode = getNode(toKey);
-        if (toNode == null) {
-            addNode(new Node(toKey));
+        if (2 * size > slots.length)
+            rehash();
+        return id;
+    }
+    
+    public String key(int id) {
+        return new String(arena, starts[id], starts[id + 1] - starts[id]);
+    }
+    
+    public SymbolTable copy() {
+        SymbolTable copy = new SymbolTable();
+        copy.arena = Arrays.copyOf(arena, arenaSize);
+        copy.arenaSize = arenaSize;
+        copy.starts = Arrays.copyOf(starts, size + 1);
+        copy.hashes = Arrays.copyOf(hashes, Math.max(size, 1));
+        copy.slots = slots.clone();
+        copy.size = size;
+        return copy;
+    }
+    
+    public long memoryBytes() {
+        return 2L * arena.length + 4L * (starts.length + hashes.length + slots.length);
+    }
+    
+    private boolean keyEquals(int id, String key) {
+        int start = starts[id];
+        if (starts[id + 1] - start != key.length())
+            return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (arena[start + i] != key.charAt(i))
+                return false;
         }
+        return true;
     }
     
-    public void removeNode(String key) {
-        for (Node n: nodes) {
-            if (n.edgesToNeighbors.contains(key)) {
-                n.edgesToNeighbors.remove(key);
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+    
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+
+/**
+ * Reproducible synthetic graphs for tests and benchmarks. Nodes are keyed "n0".."n(n-1)",
+ * and the same seed always gives the same edges in the same order.
+ */
+class GraphGenerator {
+    final String shape;
+    final String[] keys;
+    final int[] from;
+    final int[] to;
+    
+    private GraphGenerator(String shape, int n, int[] from, int[] to) {
+        this.shape = shape;
+        this.keys = new String[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = "n" + i;
+        this.from = from;
+        this.to = to;
+    }
+    
+    /**
+     * Edges between uniformly random pairs of nodes.
+     */
+    public static GraphGenerator random(int n, int m, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] from = new int[m];
+        int[] to = new int[m];
+        for (int e = 0; e < m; e++) {
+            from[e] = random.nextInt(n);
+            to[e] = random.nextInt(n);
+        }
+        return new GraphGenerator("random", n, from, to);
+    }
+    
+    /**
+     * Preferential attachment: every new node links to edgesPerNode earlier ones,
+     * picked in proportion to their degree, which gives a few very large hubs.
+     */
+    public static GraphGenerator powerLaw(int n, int edgesPerNode, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int m = (n - 1) * edgesPerNode;
+        int[] from = new int[m];
+        int[] to = new int[m];
+        // every edge end so far, picking one of them at random is picking by degree
+        int[] ends = new int[2 * m];
+        int endCount = 0;
+        int e = 0;
+        for (int u = 1; u < n; u++) {
+            for (int k = 0; k < edgesPerNode; k++) {
+                int v = endCount == 0 ? 0 : ends[random.nextInt(endCount)];
+                from[e] = u;
+                to[e++] = v;
+                ends[endCount++] = u;
+                ends[endCount++] = v;
+            }
+        }
+        return new GraphGenerator("powerLaw", n, from, to);
+    }
+    
+    /**
+     * A width by width grid with edges to the right and downwards neighbors.
+     */
+    public static GraphGenerator grid(int width) {
+        int n = width * width;
+        int m = 2 * width * (width - 1);
+        int[] from = new int[m];
+        int[] to = new int[m];
+        int e = 0;
+        for (int u = 0; u < n; u++) {
+            if (u % width != width - 1) {
+                from[e] = u;
+                to[e++] = u + 1;
             }
-            if (n.key == key) {
-                nodes.remove(n);
+            if (u + width < n) {
+                from[e] = u;
+                to[e++] = u + width;
             }
         }
+        return new GraphGenerator("grid", n, from, to);
     }
     
-    public void print() {
-        for (Node n: nodes) {
-            System.out.println("" + n.key + ":[" + String.join(",", n.edgesToNeighbors) + "]");
+    /**
+     * A single path n0 -> n1 -> ... -> n(n-1), the deepest graph for its size.
+     */
+    public static GraphGenerator chain(int n) {
+        int[] from = new int[n - 1];
+        int[] to = new int[n - 1];
+        for (int e = 0; e < n - 1; e++) {
+            from[e] = e;
+            to[e] = e + 1;
         }
+        return new GraphGenerator("chain", n, from, to);
     }
     
-    public String debugString() {
-        List<String> nodesStrings = new ArrayList<String>();
-        for (Node n: nodes) {
-            nodesStrings.add(n.key + "[" + String.join(",", n.edgesToNeighbors) + "]");
+    public int nodeCount() {
+        return keys.length;
+    }
+    
+    public int edgeCount() {
+        return from.length;
+    }
+    
+    /**
+     * The graph built with one addEdge call per edge, isolated nodes included.
+     */
+    public GraphImpl toGraph() {
+        GraphImpl graph = new GraphImpl();
+        for (String key: keys)
+            graph.addNode(new Node(key));
+        for (int e = 0; e < from.length; e++)
+            graph.addEdge(keys[from[e]], keys[to[e]]);
+        return graph;
+    }
+}
+
+/**
+ * Timing harness for the hot paths of GraphImpl, run with "java graphs.java bench".
+ * Every operation is warmed up first and then timed over several rounds, and the bytes
+ * the thread allocated are read from the JVM to report allocation per operation.
+ * Results are written as JSON, so that runs of different versions can be compared.
+ */
+class GraphBenchmark {
+    static final int WARMUP_ROUNDS = 2;
+    static final int MEASURED_ROUNDS = 5;
+    static final int QUERIES = 1000;
+    
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    final List<String> results = new ArrayList<String>();
+    
+    interface Round<S> {
+        // runs one round and returns how many operations it did
+        long run(S state);
+    }
+    
+    /**
+     * Runs every operation on every shape, from 10^3 nodes up to 10^maxExponent.
+     */
+    public void runAll(int maxExponent) {
+        for (int exponent = 3; exponent <= maxExponent; exponent++) {
+            int n = (int)Math.pow(10, exponent);
+            run(GraphGenerator.random(n, 4 * n, 42));
+            run(GraphGenerator.powerLaw(n, 4, 42));
+            run(GraphGenerator.grid((int)Math.sqrt(n)));
+            run(GraphGenerator.chain(n));
         }
-        return String.join(" ", nodesStrings);
     }
     
-    public void depthFirstSearch(Node start, Consumer<Node> consumer) {
-        Stack<Node> stack = new Stack<Node>();
-        Set<Node> visitedNodes = new HashSet<Node>();
+    public void run(GraphGenerator generator) {
+        String[] keys = generator.keys;
+        int n = generator.nodeCount();
+        GraphImpl graph = generator.toGraph();
+        SplittableRandom random = new SplittableRandom(7);
+        int[] queries = random.ints(QUERIES, 0, n).toArray();
+        // searches on the chain are O(n) each, so the big ones get fewer of them
+        int searches = (int)Math.max(1, Math.min(QUERIES, 100000000L / (n + generator.edgeCount())));
         
-        stack.push(start);
-        while (stack.size() > 0) {
-            // grab current from stack
-            Node current = stack.pop();
-            
-            // call consumer
-            consumer.accept(current);
-            
-            for (String key: current.edgesToNeighbors) {
-                // find neighbors, put them on stack
-                Node neighbor = getNode(key);
-                if (neighbor == null)
-                    throw new RuntimeException("Node keyed \"" + key + "\" not found");
-                
-                if (visitedNodes.contains(neighbor)) {
-                    continue;
-                }
-                
-                stack.push(neighbor);
-                visitedNodes.add(neighbor);
+        measure("addEdge", generator, () -> null, state -> {
+            generator.toGraph();
+            return generator.edgeCount();
+        });
+        measure("getNode", generator, () -> null, state -> {
+            for (int q: queries)
+                graph.getNode(keys[q]);
+            return queries.length;
+        });
+        measure("breadthFirstSearch", generator, () -> null, state -> {
+            for (int i = 0; i < searches; i++)
+                graph.breadthFirstSearch(graph.getNode(keys[queries[i]]), node -> {});
+            return searches;
+        });
+        measure("depthFirstSearch", generator, () -> null, state -> {
+            for (int i = 0; i < searches; i++)
+                graph.depthFirstSearch(graph.getNode(keys[queries[i]]), node -> {});
+            return searches;
+        });
+        CsrGraph frozen = graph.freeze();
+        measure("findPath", generator, () -> null, state -> {
+            for (int i = 0; i + 1 < searches; i += 2)
+                frozen.findPath(frozen.node(queries[i]), frozen.node(queries[i + 1]));
+            return Math.max(1, searches / 2);
+        });
+        measure("removeNode", generator, () -> GraphImpl.of(frozen), copy -> {
+            for (int q: queries)
+                copy.removeNode(keys[q]);
+            return queries.length;
+        });
+    }
+    
+    private <S> void measure(String operation, GraphGenerator generator, Supplier<S> setup, Round<S> round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            round.run(setup.get());
+        
+        long operations = 0;
+        long nanos = 0;
+        long bestNanosPerOp = Long.MAX_VALUE;
+        long allocated = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            S state = setup.get();
+            long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long ops = round.run(state);
+            long elapsed = System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+            operations += ops;
+            nanos += elapsed;
+            bestNanosPerOp = Math.min(bestNanosPerOp, elapsed / ops);
+        }
+        
+        String result = String.format(Locale.ROOT,
+            "{\"operation\":\"%s\",\"shape\":\"%s\",\"nodes\":%d,\"edges\":%d,\"operations\":%d,"
+                + "\"nanosPerOp\":%.1f,\"bestNanosPerOp\":%d,\"bytesPerOp\":%.1f}",
+            operation, generator.shape, generator.nodeCount(), generator.edgeCount(), operations,
+            (double)nanos / operations, bestNanosPerOp, (double)allocated / operations);
+        results.add(result);
+        System.out.println(result);
+    }
+    
+    public String toJson() {
+        return "[\n  " + String.join(",\n  ", results) + "\n]\n";
+    }
+}
+
+/**
+ * Opt-in counters for graph operations. Counters are LongAdders, so concurrent
+ * traversals update separate cells instead of fighting over one, and traversals add
+ * their totals once at the end rather than per node. Latencies go into histograms
+ * with one bucket per power of two nanoseconds, so percentiles are accurate to 2x.
+ */
+class GraphMetrics implements Graphs.GraphMetricsMXBean {
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "graph-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    final LongAdder nodesVisited = new LongAdder();
+    final LongAdder edgesScanned = new LongAdder();
+    final LongAdder revisits = new LongAdder();
+    final LongAdder nodeLookups = new LongAdder();
+    final LongAdder consumerNanos = new LongAdder();
+    final LongAccumulator frontierPeak = new LongAccumulator(Math::max, 0);
+    final ConcurrentHashMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+    
+    static class Histogram {
+        final LongAdder[] buckets = new LongAdder[64];
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+        
+        void record(long nanos) {
+            buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+        
+        /**
+         * Upper bound of the bucket holding the given fraction of the samples.
+         */
+        long percentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
             }
+            long rank = (long)Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0)
+                    return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+            return 0;
         }
     }
     
-    public void breadthFirstSearch(Node start, Consumer<Node> consumer) {
-        Queue<Node> queue = new LinkedList<Node>();
-        Set<Node> visitedNodes = new HashSet<Node>();
+    /**
+     * A consistent enough copy of the counters at one point in time.
+     */
+    static class Snapshot {
+        final long takenMillis = System.currentTimeMillis();
+        long nodesVisited;
+        long edgesScanned;
+        long revisits;
+        long nodeLookups;
+        long frontierPeak;
+        long consumerNanos;
+        final Map<String, long[]> latencies = new TreeMap<String, long[]>();
         
-        queue.add(start);
-        while (queue.size() > 0) {
-            // grab current from queue
-            Node current = queue.poll();
-
-            // call consumer
-            consumer.accept(current);
-            
-            // find neighbors, put them on queue, to be visited later.
-            for (String key: current.edgesToNeighbors) {
-                // find neighbors, put them on stack
-                Node neighbor = getNode(key);
-                if (neighbor == null)
-                    throw new RuntimeException("Node keyed \"" + key + "\" not found");
-                
-                if (visitedNodes.contains(neighbor)) {
-                    continue;
-                }
-                
-                queue.add(neighbor);
-                visitedNodes.add(neighbor);
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("visited ").append(nodesVisited).append(", scanned ").append(edgesScanned)
+                .append(", revisits ").append(revisits).append(", lookups ").append(nodeLookups)
+                .append(", frontier peak ").append(frontierPeak).append(", consumer ").append(consumerNanos / 1000000).append("ms");
+            for (Map.Entry<String, long[]> entry: latencies.entrySet()) {
+                long[] l = entry.getValue();
+                text.append(", ").append(entry.getKey()).append(" x").append(l[0])
+                    .append(" p50<").append(l[1]).append("ns p99<").append(l[2]).append("ns max ").append(l[3]).append("ns");
             }
+            return text.toString();
         }
     }
     
-    public List<Node> findPath(Node source, Node target) {
-        // do a depth first to explore all accessible nodes
-        return List.of();
+    public void traversed(int reached, long scanned, long revisited, int peak) {
+        nodesVisited.add(reached);
+        edgesScanned.add(scanned);
+        revisits.add(revisited);
+        frontierPeak.accumulate(peak);
     }
     
-    public boolean isAcyclic() {
-        // depth first search, looking for edges back towards gray nodes
-        return false;
+    public void record(String operation, long nanos) {
+        latencies.computeIfAbsent(operation, o -> new Histogram()).record(nanos);
     }
     
-    public void fromAdjacencyMatrix(boolean[][] matrix) {
+    /**
+     * The consumer, timed, so time spent outside the graph can be told apart.
+     */
+    public Consumer<Node> timed(Consumer<Node> consumer) {
+        return node -> {
+            long started = System.nanoTime();
+            consumer.accept(node);
+            consumerNanos.add(System.nanoTime() - started);
+        };
     }
     
-    public boolean[][] toAdjacencyMatrix() {
-        return new boolean[0][0];
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.nodesVisited = nodesVisited.sum();
+        snapshot.edgesScanned = edgesScanned.sum();
+        snapshot.revisits = revisits.sum();
+        snapshot.nodeLookups = nodeLookups.sum();
+        snapshot.frontierPeak = frontierPeak.get();
+        snapshot.consumerNanos = consumerNanos.sum();
+        latencies.forEach((operation, histogram) -> snapshot.latencies.put(operation, new long[] {
+            histogram.count.sum(), histogram.percentile(0.5), histogram.percentile(0.99), histogram.maxNanos.get() }));
+        return snapshot;
     }
     
-    public Graph invertDirections() {
-        return null;
+    /**
+     * Hands a snapshot to the listener every period, until the returned future is cancelled.
+     */
+    public ScheduledFuture<?> every(long period, TimeUnit unit, Consumer<Snapshot> listener) {
+        return SCHEDULER.scheduleAtFixedRate(() -> listener.accept(snapshot()), period, period, unit);
     }
     
-    public List<Node> topologicalOrder() {
-        // depth first search, then sort by ... end timestamp?
-        return null;
+    /**
+     * Registers these metrics with the platform MBean server, under graphs:type=GraphMetrics,name=...
+     */
+    public javax.management.ObjectName register(String name) {
+        try {
+            javax.management.ObjectName objectName = new javax.management.ObjectName("graphs:type=GraphMetrics,name=" + javax.management.ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (javax.management.JMException e) {
+            throw new RuntimeException("Could not register graph metrics \"" + name + "\"", e);
+        }
     }
     
-    public int numberOfTrees() {
-        // detect the number of trees or islands in the graph
-        // essentially go over all nodes, do DFS, keeping visited nodes in a list.
-        return 0;
+    public void reset() {
+        nodesVisited.reset();
+        edgesScanned.reset();
+        revisits.reset();
+        nodeLookups.reset();
+        consumerNanos.reset();
+        frontierPeak.reset();
+        latencies.clear();
     }
     
-    private Node getNode(String key) {
-        // we should use a Hashtable for faster access...
-        for (Node n: nodes) {
-            if (n.key.equals(key))
-                return n;
-        }
-        
-        return null;
+    public long getNodesVisited() {
+        return nodesVisited.sum();
+    }
+    
+    public long getEdgesScanned() {
+        return edgesScanned.sum();
+    }
+    
+    public long getRevisits() {
+        return revisits.sum();
     }
     
+    public long getNodeLookups() {
+        return nodeLookups.sum();
+    }
+    
+    public long getFrontierPeak() {
+        return frontierPeak.get();
+    }
+    
+    public long getConsumerNanos() {
+        return consumerNanos.sum();
+    }
+    
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        latencies.forEach((operation, histogram) -> counts.put(operation, histogram.count.sum()));
+        return counts;
+    }
+    
+    public Map<String, Long> getMedianNanos() {
+        Map<String, Long> medians = new TreeMap<String, Long>();
+        latencies.forEach((operation, histogram) -> medians.put(operation, histogram.percentile(0.5)));
+        return medians;
+    }
+    
+    public Map<String, Long> getP99Nanos() {
+        Map<String, Long> p99 = new TreeMap<String, Long>();
+        latencies.forEach((operation, histogram) -> p99.put(operation, histogram.percentile(0.99)));
+        return p99;
+    }
 }
 
 
-
 /*
 public enum Color {
     BLACK, // visited node
@@ -393,7 +5197,7 @@ class Graph {
 */
 
 class GraphDemo {
-    public void runTests() {
+    public void runTests() throws javax.management.JMException, InterruptedException {
         Graph g = new GraphImpl();
         g.addEdge("a", "b");
         g.addEdge("a", "c");
@@ -402,6 +5206,598 @@ class GraphDemo {
         g.addEdge("f", "g");
         assertEquals("a[b,c] b[c] c[d] d[] f[g] g[]", g.debugString());
         
+        CsrGraph csr = ((GraphImpl)g).freeze();
+        assertEquals("a[b,c] b[c] c[d] d[] f[g] g[]", csr.debugString());
+        assertEquals("a[] b[a] c[a,b] d[c] f[] g[f]", csr.invertDirections().debugString());
+        assertEquals(6, csr.nodeCount());
+        assertEquals(5, csr.edgeCount());
+        
+        // the snapshot is kept until the graph changes
+        GraphImpl cached = new GraphImpl();
+        cached.addEdge("a", "b");
+        CsrGraph first = cached.freeze();
+        assertEquals(true, first == cached.freeze());
+        cached.addEdge("a", "b", 2.0);
+        assertEquals(false, first == cached.freeze());
+        assertEquals(true, cached.freeze().weight(0) == 2.0);
+        CsrGraph second = cached.freeze();
+        cached.removeNode("b");
+        assertEquals("a[]", cached.freeze().debugString());
+        assertEquals("a[b] b[]", second.debugString());
+        
+        final StringBuilder steps = new StringBuilder();
+        csr.breadthFirstSearch(csr.node(0), n -> steps.append(n.key));
+        assertEquals("abcd", steps.toString());
+        steps.setLength(0);
+        csr.depthFirstSearch(csr.node(0), n -> steps.append(n.key));
+        assertEquals("acdb", steps.toString());
+        steps.setLength(0);
+        csr.invertDirections().depthFirstSearch(csr.node(3), n -> steps.append(n.key));
+        assertEquals("dcba", steps.toString());
+        
+        // parallel BFS must agree with the sequential one on depths, on a wide random graph
+        Random rand = new Random(42);
+        GraphImpl wide = new GraphImpl();
+        for (int i = 0; i < 3000; i++) {
+            wide.addNode(new Node("n" + i));
+        }
+        for (int i = 0; i < 12000; i++) {
+            wide.addEdge("n" + rand.nextInt(3000), "n" + rand.nextInt(3000));
+        }
+        CsrGraph wideCsr = wide.freeze();
+        ParallelBfs.Result bfs = wideCsr.parallelBreadthFirstSearch(wideCsr.node(0));
+        int[] expectedDepth = new int[wideCsr.nodeCount()];
+        Arrays.fill(expectedDepth, -1);
+        expectedDepth[0] = 0;
+        wideCsr.breadthFirstSearch(0, u -> {
+            for (int e = wideCsr.offsets[u]; e < wideCsr.offsets[u + 1]; e++) {
+                if (expectedDepth[wideCsr.targets[e]] < 0)
+                    expectedDepth[wideCsr.targets[e]] = expectedDepth[u] + 1;
+            }
+        });
+        for (int i = 0; i < expectedDepth.length; i++) {
+            assertEquals(expectedDepth[i], bfs.depth[i]);
+            if (i > 0 && bfs.parent[i] >= 0)
+                assertEquals(bfs.depth[i] - 1, bfs.depth[bfs.parent[i]]);
+        }
+        assertEquals(bfs.reached, (int)wideCsr.reachableStream(wideCsr.node(0)).parallel().map(n -> n.key).distinct().count());
+        // split into tasks of a single word, so the fork and merge paths run too
+        ParallelBfs.Result fineBfs = new ParallelBfs(wideCsr, ForkJoinPool.commonPool(), 1).run(0);
+        assertEquals(bfs.reached, fineBfs.reached);
+        for (int i = 0; i < expectedDepth.length; i++)
+            assertEquals(expectedDepth[i], fineBfs.depth[i]);
+        // and with the default grain, on a graph wider than one task
+        CsrGraph large = GraphGenerator.random(3 * 64 * ParallelBfs.GRAIN, 12 * 64 * ParallelBfs.GRAIN, 7).toGraph().freeze();
+        ParallelBfs.Result largeBfs = large.parallelBreadthFirstSearch(large.node(0));
+        int[] largeDepth = new int[large.nodeCount()];
+        Arrays.fill(largeDepth, -1);
+        largeDepth[0] = 0;
+        large.breadthFirstSearch(0, u -> {
+            for (int e = large.offsets[u]; e < large.offsets[u + 1]; e++) {
+                if (largeDepth[large.targets[e]] < 0)
+                    largeDepth[large.targets[e]] = largeDepth[u] + 1;
+            }
+        });
+        int largeReached = 0;
+        for (int i = 0; i < largeDepth.length; i++) {
+            assertEquals(largeDepth[i], largeBfs.depth[i]);
+            if (largeDepth[i] >= 0)
+                largeReached++;
+        }
+        assertEquals(largeReached, largeBfs.reached);
+        
+        // lazy traversal streams, in the same order as the consumer versions
+        for (Graph graph: List.of(g, csr)) {
+            steps.setLength(0);
+            graph.depthFirstSearch(csr.node(0), n -> steps.append(n.key));
+            assertEquals(steps.toString(), graph.depthFirstStream(csr.node(0)).map(n -> n.key).collect(Collectors.joining()));
+            steps.setLength(0);
+            graph.breadthFirstSearch(csr.node(0), n -> steps.append(n.key));
+            assertEquals(steps.toString(), graph.breadthFirstStream(csr.node(0)).map(n -> n.key).collect(Collectors.joining()));
+            assertEquals("ab", graph.breadthFirstStream(csr.node(0)).limit(2).map(n -> n.key).collect(Collectors.joining()));
+            assertEquals("c", graph.depthFirstStream(csr.node(0)).filter(n -> n.key.equals("c")).findFirst().get().key);
+            assertEquals(4, (int)graph.reachableStream(csr.node(0)).count());
+        }
+        
+        // removals only touch the edges of removed nodes
+        GraphImpl churn = new GraphImpl();
+        churn.addEdge("a", "b", 2);
+        churn.addEdge("a", "c", 3);
+        churn.addEdge("b", "c");
+        churn.addEdge("c", "a");
+        churn.addEdge("c", "d");
+        churn.addEdge("d", "d");
+        churn.removeNode(new String("b"));
+        assertEquals("a[c] c[a,d] d[d]", churn.debugString());
+        assertEquals(3, (int)churn.freeze().weight(0));
+        churn.addEdge("b", "a");
+        churn.addEdge("e", "c");
+        churn.removeNodes(List.of("c", "d", "x"));
+        assertEquals("a[] b[a] e[]", churn.debugString());
+        churn.removeNode("a");
+        assertEquals("b[] e[]", churn.debugString());
+        
+        // topological order, lazily and with cycle witnesses
+        assertEquals(true, g.isAcyclic());
+        assertEquals("a,f,b,g,c,d", keysOf(g.topologicalOrder()));
+        assertEquals("a,f", ((GraphImpl)g).topologicalStream().limit(2).map(n -> n.key).collect(Collectors.joining(",")));
+        g.addEdge("d", "b");
+        g.addEdge("h", "c");
+        assertEquals(false, g.isAcyclic());
+        assertEquals(true, g.topologicalOrder() == null);
+        assertEquals("b,c,d", keysOf(((GraphImpl)g).findCycle()));
+        
+        GraphImpl chain = new GraphImpl();
+        Node[] links = new Node[200000];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = new Node("c" + i);
+            chain.addNode(links[i]);
+            if (i > 0)
+                chain.addEdge(links[i - 1].key, links[i].key);
+        }
+        assertEquals(links.length, chain.topologicalOrder().size());
+        
+        // parallel reachability must report every reachable node exactly once
+        Set<String> reachable = ConcurrentHashMap.newKeySet();
+        long reportedCount = chain.freeze().reachableStream(links[0]).parallel().peek(n -> reachable.add(n.key)).count();
+        assertEquals(links.length, (int)reportedCount);
+        assertEquals(links.length, reachable.size());
+        
+        // shortest paths, by edge count and by weight
+        GraphImpl roads = new GraphImpl();
+        roads.addEdge("a", "b", 4);
+        roads.addEdge("a", "c", 1);
+        roads.addEdge("c", "b", 1);
+        roads.addEdge("b", "d", 1);
+        roads.addEdge("c", "e", 7);
+        roads.addEdge("e", "d", 1);
+        roads.addEdge("f", "a");
+        CsrGraph roadsCsr = roads.freeze();
+        Node from = roadsCsr.node(roadsCsr.idOf("a"));
+        Node to = roadsCsr.node(roadsCsr.idOf("d"));
+        assertEquals("a,b,d", keysOf(roadsCsr.findPath(from, to)));
+        assertEquals("a,c,b,d", keysOf(roadsCsr.shortestPath(from, to)));
+        assertEquals("a,c,b,d", keysOf(roadsCsr.shortestPath(from, to, n -> 0)));
+        assertEquals(3, (int)PathSearch.forThread(roadsCsr.nodeCount()).pathWeight());
+        assertEquals("", keysOf(roadsCsr.findPath(to, from)));
+        assertEquals("a", keysOf(roadsCsr.findPath(from, from)));
+        assertEquals("d,b", keysOf(((CsrGraph)roadsCsr.invertDirections()).shortestPath(to, roadsCsr.node(roadsCsr.idOf("b")))));
+        // a search aborted by a negative weight leaves nothing behind for the next one
+        GraphImpl negative = new GraphImpl();
+        negative.addEdge("s", "x", 1);
+        negative.addEdge("x", "y", 1);
+        negative.addEdge("s", "z", 5);
+        negative.addEdge("y", "z", -1);
+        CsrGraph negativeCsr = negative.freeze();
+        try {
+            negativeCsr.shortestPath(negativeCsr.node(0), negativeCsr.node(negativeCsr.idOf("z")));
+            throw new IllegalStateException("Assertion failed, was expecting a negative weight");
+        } catch (IllegalArgumentException e) {
+            assertEquals(true, e.getMessage().startsWith("Negative weight"));
+        }
+        assertEquals("a,c,b,d", keysOf(roadsCsr.shortestPath(from, to)));
+        assertEquals(3, (int)PathSearch.forThread(roadsCsr.nodeCount()).pathWeight());
+        
+        // bidirectional BFS must find paths as short as a plain BFS would
+        for (int q = 0; q < 200; q++) {
+            int s = rand.nextInt(wideCsr.nodeCount());
+            int t = rand.nextInt(wideCsr.nodeCount());
+            ParallelBfs.Result levels = new ParallelBfs(wideCsr).run(s);
+            int length = PathSearch.forThread(wideCsr.nodeCount()).unweighted(wideCsr, s, t);
+            assertEquals(levels.depth[t] + 1, length);
+        }
+        
+        // adjacency matrices, plain and bit packed
+        GraphImpl square = new GraphImpl();
+        square.fromAdjacencyMatrix(new boolean[][] {
+            { false, true, false, false },
+            { false, false, true, false },
+            { true, false, false, false },
+            { false, false, true, true },
+        });
+        assertEquals("0[1] 1[2] 2[0] 3[2,3]", square.debugString());
+        assertEquals(true, Arrays.deepEquals(square.toAdjacencyMatrix(), square.toBitMatrix().toBooleans()));
+        BitMatrix closure = square.toBitMatrix().transitiveClosure();
+        assertEquals("0[0,1,2] 1[0,1,2] 2[0,1,2] 3[0,1,2,3]", closure.toGraph().debugString());
+        try {
+            BitMatrix.of(new boolean[][] { { false, true, true }, { false, false } });
+            throw new IllegalStateException("Assertion failed, was expecting a non-square matrix to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Row 0 has 3 cells, expecting 2", e.getMessage());
+        }
+        
+        // the closure must agree with a DFS from every node
+        BitMatrix wideClosure = BitMatrix.of(wideCsr).transitiveClosure();
+        for (int u = 0; u < wideCsr.nodeCount(); u += 37) {
+            final int source = u;
+            final int[] reached = new int[1];
+            wideCsr.depthFirstSearch(u, v -> {
+                if (v != source)
+                    reached[0]++;
+                assertEquals(true, v == source || wideClosure.reaches(source, v));
+            });
+            assertEquals(reached[0] + (wideClosure.reaches(u, u) ? 1 : 0), wideClosure.rowCount(u));
+        }
+        
+        // binary graph files, mapped back without copying
+        try {
+            Path file = Files.createTempFile("graph", ".bin");
+            GraphFile.write(roadsCsr, file);
+            MappedGraph mapped = GraphFile.map(file);
+            assertEquals(roadsCsr.debugString(), mapped.debugString());
+            assertEquals(roadsCsr.invertDirections().debugString(), mapped.invertDirections().debugString());
+            assertEquals(-1, mapped.idOf("x"));
+            steps.setLength(0);
+            mapped.breadthFirstSearch(new Node("a"), n -> steps.append(n.key));
+            assertEquals("abcde", steps.toString());
+            assertEquals("a,c,b,d", keysOf(mapped.toCsr().shortestPath(new Node("a"), mapped.toCsr().node(mapped.idOf("d")))));
+            
+            // rewriting replaces the file, a graph mapped from the old one keeps reading it
+            GraphFile.write(wideCsr, file);
+            assertEquals(wideCsr.debugString(), GraphFile.map(file).debugString());
+            assertEquals(roadsCsr.debugString(), mapped.debugString());
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        
+        // bulk loading, from pairs and from edge list files
+        GraphLoader loader = new GraphLoader();
+        loader.add("a", "b").add("a", "c").add("b", "c").add("c", "d").add("a", "b").add("f", "g");
+        GraphImpl loaded = loader.buildGraph();
+        assertEquals("a[b,c] b[c] c[d] d[] f[g] g[]", loaded.debugString());
+        assertEquals(6, (int)loader.stats().edgesRead);
+        assertEquals(5, (int)loader.stats().distinctEdges);
+        try {
+            loader.add("a", "z");
+            throw new RuntimeException("Assertion failed, was expecting the loader to be used up");
+        } catch (IllegalStateException e) {
+            assertEquals(true, loaded.getNode("z") == null);
+        }
+        try {
+            Path edgeList = Files.createTempFile("edges", ".txt");
+            Files.write(edgeList, List.of("# roads", "a b", "  a\tc ", "", "c b", "b d", "c e", "e d", "f a"));
+            CsrGraph fromFile = new GraphLoader().readEdgeList(edgeList).build();
+            assertEquals("a[b,c] b[d] c[b,e] d[] e[d] f[a]", fromFile.debugString());
+            Files.delete(edgeList);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        GraphLoader wideLoader = new GraphLoader();
+        for (int u = 0; u < wideCsr.nodeCount(); u++) {
+            for (int e = wideCsr.offsets[u]; e < wideCsr.offsets[u + 1]; e++)
+                wideLoader.add(wideCsr.node(u).key, wideCsr.node(wideCsr.targets[e]).key);
+        }
+        CsrGraph wideLoaded = wideLoader.build();
+        assertEquals(wideCsr.edgeCount(), wideLoaded.edgeCount());
+        assertEquals(wideCsr.strongComponents(false).count(), wideLoaded.strongComponents(false).count());
+        
+        // concurrent writers must not lose edges, readers see consistent snapshots
+        ConcurrentGraph shared = new ConcurrentGraph();
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < 4; w++) {
+            final int writer = w;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    shared.addEdge("w" + writer + "-" + i, "hub");
+                    shared.addEdge("hub", "w" + writer + "-" + (i % 100));
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread t: writers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        CsrGraph sharedSnapshot = shared.snapshot();
+        assertEquals(8001, sharedSnapshot.nodeCount());
+        assertEquals(8400, sharedSnapshot.edgeCount());
+        assertEquals(true, sharedSnapshot == shared.snapshot());
+        assertEquals(1, shared.numberOfTrees());
+        shared.removeNode("hub");
+        assertEquals(8000, shared.numberOfTrees());
+        assertEquals(0, shared.snapshot().edgeCount());
+        assertEquals(8000, shared.snapshot().nodeCount());
+        
+        // snapshots and the graph keep their own copies of the nodes
+        ConcurrentGraph owned = new ConcurrentGraph();
+        owned.addEdge("x", "y");
+        Node outside = new Node("z");
+        outside.edgesToNeighbors.add("x");
+        owned.addNode(outside);
+        outside.edgesToNeighbors.add("nowhere");
+        CsrGraph before = owned.snapshot();
+        owned.addEdge("x", "z");
+        assertEquals("x[y] y[] z[x]", before.debugString());
+        assertEquals(1, before.node(before.idOf("x")).edgesToNeighbors.size());
+        assertEquals("x[y,z] y[] z[x]", owned.snapshot().debugString());
+        Node dangling = new Node("w");
+        dangling.edgesToNeighbors.add("nowhere");
+        try {
+            owned.addNode(dangling);
+            throw new IllegalStateException("Assertion failed, was expecting a missing node");
+        } catch (RuntimeException e) {
+            assertEquals(true, e.getMessage().contains("nowhere"));
+        }
+        owned.removeNode("x");
+        assertEquals("y[] z[]", owned.snapshot().debugString());
+        owned.addEdge("y", "x");
+        assertEquals("y[x] z[] x[]", owned.snapshot().debugString());
+        
+        // strongly connected components, sequential and parallel must agree
+        assertEquals("[[b, c, d], [a], [g], [f], [h]]", "" + g.stronglyConnectedComponents().stream()
+                .map(c -> c.stream().map(n -> n.key).collect(Collectors.toList())).collect(Collectors.toList()));
+        assertEquals("0[] 1[0] 2[] 3[2] 4[0]", g.condensation().debugString());
+        assertEquals(links.length, chain.stronglyConnectedComponents().size());
+        chain.addEdge(links[links.length - 1].key, links[0].key);
+        assertEquals(1, chain.stronglyConnectedComponents().size());
+        
+        StronglyConnectedComponents sequential = wideCsr.strongComponents(false);
+        StronglyConnectedComponents parallel = wideCsr.strongComponents(true);
+        assertEquals(sequential.count(), parallel.count());
+        for (int u = 0; u < wideCsr.nodeCount(); u++) {
+            for (int e = wideCsr.offsets[u]; e < wideCsr.offsets[u + 1]; e++) {
+                int v = wideCsr.targets[e];
+                assertEquals(sequential.component[u] == sequential.component[v], parallel.component[u] == parallel.component[v]);
+                assertEquals(true, parallel.component[u] >= parallel.component[v]);
+            }
+        }
+        
+        // symbol table and id based adjacency
+        SymbolTable symbols = new SymbolTable();
+        assertEquals(0, symbols.intern("x"));
+        assertEquals(1, symbols.intern("yy"));
+        assertEquals(0, symbols.intern("x"));
+        assertEquals(-1, symbols.idOf("z"));
+        assertEquals("yy", symbols.key(1));
+        GraphImpl ids = new GraphImpl();
+        Node kept = new Node("p");
+        kept.edgesToNeighbors.add("q");
+        ids.addNode(kept);
+        ids.addEdge("q", "r", 2.5);
+        ids.addEdge("r", "p");
+        assertEquals("p[q] q[r] r[p]", ids.debugString());
+        assertEquals(true, ids.weight("q", "r") == 2.5);
+        assertEquals(true, Double.isNaN(ids.weight("r", "q")));
+        assertEquals("[q]", "" + kept.edgesToNeighbors);
+        ids.removeNode("p");
+        assertEquals("q[r] r[]", ids.debugString());
+        assertEquals("[q]", "" + kept.edgesToNeighbors);
+        ids.addEdge("s", "q");
+        assertEquals("q[r] r[] s[q]", ids.freeze().debugString());
+        assertEquals(true, ids.freeze().shortestPath(ids.freeze().node(2), ids.freeze().node(1)).size() == 3);
+        assertEquals("q[r] r[] s[q]", GraphImpl.of(ids.freeze()).debugString());
+        // snapshots hand out the graph's own nodes, and removed ids are reclaimed under churn
+        GraphImpl churned = new GraphImpl();
+        for (int i = 0; i < 1000; i++)
+            churned.addEdge("c" + i, "c" + (i + 1) % 1000, 1 + i % 3);
+        Node survivor = churned.getNode("c995");
+        assertEquals(true, churned.findPath(churned.getNode("c990"), survivor).get(5) == survivor);
+        assertEquals(true, churned.freeze().topologicalOrder() == null);
+        for (int i = 0; i < 990; i++)
+            churned.removeNode("c" + i);
+        assertEquals(true, churned.idBound() < 100);
+        assertEquals("c990[c991] c991[c992] c992[c993] c993[c994] c994[c995] c995[c996] c996[c997] c997[c998] c998[c999] c999[]",
+                churned.debugString());
+        assertEquals("[c996]", "" + survivor.edgesToNeighbors);
+        assertEquals(true, churned.getNode("c995") == survivor);
+        assertEquals(true, churned.weight("c995", "c996") == 3.0);
+        assertEquals(true, churned.reaches("c990", "c999"));
+        assertEquals(1, churned.numberOfTrees());
+        assertEquals(true, churned.freeze().node(5) == survivor);
+        
+        // clearing hands caller-held nodes back the same way removing them does
+        Node handedBack = new Node("t");
+        handedBack.edgesToNeighbors.add("q");
+        handedBack.setWeight(0, 4.0);
+        ids.addNode(handedBack);
+        ids.clear();
+        assertEquals("[q]", "" + handedBack.edgesToNeighbors);
+        assertEquals(true, handedBack.weightOf(0) == 4.0);
+        handedBack.edgesToNeighbors.add("u");
+        ids.addNode(handedBack);
+        assertEquals("t[q,u] q[] u[]", ids.debugString());
+        assertEquals(true, ids.weight("t", "q") == 4.0);
+        
+        // islands, kept up to date while adding and recounted after removals
+        GraphImpl islands = new GraphImpl();
+        islands.addEdge("a", "b");
+        islands.addEdge("c", "b");
+        islands.addNode(new Node("d"));
+        assertEquals(2, islands.numberOfTrees());
+        assertEquals(true, islands.connected("a", "c"));
+        assertEquals(false, islands.connected("a", "d"));
+        islands.removeNode("b");
+        assertEquals(3, islands.numberOfTrees());
+        assertEquals(false, islands.connected("a", "c"));
+        islands.addEdge("b", "d");
+        islands.addEdge("a", "d");
+        assertEquals(2, islands.numberOfTrees());
+        assertEquals(2, islands.freeze().numberOfTrees());
+        ConcurrentGraph liveIslands = new ConcurrentGraph();
+        liveIslands.addEdge("a", "b");
+        liveIslands.addEdge("c", "d");
+        assertEquals(2, liveIslands.numberOfTrees());
+        liveIslands.addEdge("b", "c");
+        liveIslands.addEdge("b", "c");
+        Node joined = new Node("e");
+        joined.edgesToNeighbors.add("a");
+        liveIslands.addNode(joined);
+        liveIslands.addNode(new Node("f"));
+        assertEquals(2, liveIslands.numberOfTrees());
+        liveIslands.removeNode("b");
+        assertEquals(3, liveIslands.numberOfTrees());
+        liveIslands.addEdge("f", "d");
+        assertEquals(2, liveIslands.numberOfTrees());
+        assertEquals(liveIslands.numberOfTrees(), liveIslands.snapshot().numberOfTrees());
+        assertEquals(1, chain.numberOfTrees());
+        assertEquals(wideCsr.numberOfTrees(), GraphImpl.of(wideCsr).numberOfTrees());
+        UnionFind wideSets = new UnionFind(wideCsr.nodeCount());
+        for (int u = 0; u < wideCsr.nodeCount(); u++) {
+            for (int e = wideCsr.offsets[u]; e < wideCsr.offsets[u + 1]; e++)
+                wideSets.union(u, wideCsr.targets[e]);
+        }
+        assertEquals(wideSets.count(), wideCsr.numberOfTrees());
+        
+        // minimum spanning forest, Boruvka and Kruskal must pick the same edges
+        GraphImpl cities = new GraphImpl();
+        cities.addUndirectedEdge("a", "b", 4);
+        cities.addUndirectedEdge("a", "c", 1);
+        cities.addUndirectedEdge("b", "c", 2);
+        cities.addUndirectedEdge("c", "d", 5);
+        cities.addUndirectedEdge("b", "d", 5);
+        cities.addUndirectedEdge("e", "f", 3);
+        MinimumSpanningForest spanning = cities.minimumSpanningForest();
+        assertEquals(4, spanning.edgeCount());
+        assertEquals(true, spanning.totalWeight() == 11.0);
+        assertEquals(2, spanning.toGraph().numberOfTrees());
+        assertEquals("a[c] b[c,d] c[a,b] d[b] e[f] f[e]", spanning.toGraph().debugString());
+        
+        Random weightRandom = new Random(7);
+        GraphLoader weightedLoader = new GraphLoader();
+        for (int i = 0; i < 20000; i++)
+            weightedLoader.add("w" + weightRandom.nextInt(5000), "w" + weightRandom.nextInt(5000));
+        GraphImpl weighted = weightedLoader.buildGraph();
+        for (Node n: new ArrayList<Node>(weighted.nodes)) {
+            for (String neighbor: new ArrayList<String>(n.edgesToNeighbors))
+                weighted.addEdge(n.key, neighbor, weightRandom.nextInt(100));
+        }
+        CsrGraph weightedCsr = weighted.freeze();
+        MinimumSpanningForest kruskal = MinimumSpanningForest.kruskal(weightedCsr);
+        MinimumSpanningForest boruvka = MinimumSpanningForest.boruvka(weightedCsr);
+        assertEquals(weightedCsr.nodeCount() - weightedCsr.numberOfTrees(), boruvka.edgeCount());
+        assertEquals(true, kruskal.totalWeight() == boruvka.totalWeight());
+        assertEquals(true, Arrays.equals(kruskal.chosen, boruvka.chosen));
+        
+        // generators are reproducible and have the expected shapes
+        assertEquals(true, Arrays.equals(GraphGenerator.random(100, 300, 1).to, GraphGenerator.random(100, 300, 1).to));
+        assertEquals(1, GraphGenerator.grid(10).toGraph().numberOfTrees());
+        assertEquals(180, GraphGenerator.grid(10).edgeCount());
+        assertEquals(1, GraphGenerator.powerLaw(1000, 3, 5).toGraph().numberOfTrees());
+        GraphImpl generatedChain = GraphGenerator.chain(1000).toGraph();
+        assertEquals(1000, generatedChain.findPath(generatedChain.getNode("n0"), generatedChain.getNode("n999")).size());
+        
+        // metrics count traversals only once switched on
+        GraphImpl measured = GraphGenerator.grid(3).toGraph();
+        GraphMetrics metrics = new GraphMetrics();
+        measured.breadthFirstSearch(measured.getNode("n0"), node -> {});
+        measured.setMetrics(metrics);
+        measured.breadthFirstSearch(measured.getNode("n0"), node -> {});
+        measured.depthFirstSearch(measured.getNode("n4"), node -> {});
+        GraphMetrics.Snapshot counted = metrics.snapshot();
+        assertEquals(9 + 4, (int)counted.nodesVisited);
+        assertEquals(12 + 4, (int)counted.edgesScanned);
+        assertEquals(12 + 4 - 8 - 3, (int)counted.revisits);
+        assertEquals(2, (int)counted.nodeLookups);
+        assertEquals(3, (int)counted.frontierPeak);
+        assertEquals(1, (int)counted.latencies.get("breadthFirstSearch")[0]);
+        assertEquals(true, metrics.getP99Nanos().get("depthFirstSearch") >= metrics.getMedianNanos().get("depthFirstSearch"));
+        javax.management.ObjectName metricsName = metrics.register("tests");
+        assertEquals(true, ManagementFactory.getPlatformMBeanServer().getAttribute(metricsName, "NodesVisited").equals(13L));
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        measured.setMetrics(null);
+        
+        // reachability index, with the closure on small graphs and interval labels on large ones
+        GraphImpl reach = new GraphImpl();
+        reach.addEdge("a", "b");
+        reach.addEdge("b", "c");
+        reach.addEdge("c", "b");
+        reach.addEdge("d", "a");
+        assertEquals(true, reach.reaches("a", "c"));
+        assertEquals(true, reach.reaches("c", "b"));
+        assertEquals(false, reach.reaches("c", "a"));
+        ReachabilityIndex built = reach.reachabilityIndex();
+        assertEquals(true, built.usesClosure());
+        reach.addEdge("d", "c");
+        assertEquals(true, built == reach.reachabilityIndex());
+        reach.addEdge("c", "e");
+        assertEquals(true, reach.reaches("d", "e"));
+        assertEquals(false, built == reach.reachabilityIndex());
+        reach.removeNode("b");
+        assertEquals(false, reach.reaches("a", "c"));
+        assertEquals(true, reach.reaches("d", "e"));
+        
+        CsrGraph sparse = GraphGenerator.random(20000, 22000, 3).toGraph().freeze();
+        ReachabilityIndex labels = new ReachabilityIndex(sparse);
+        assertEquals(false, labels.usesClosure());
+        Random reachRandom = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            int source = reachRandom.nextInt(sparse.nodeCount());
+            int target = reachRandom.nextInt(sparse.nodeCount());
+            assertEquals(!sparse.findPath(sparse.node(source), sparse.node(target)).isEmpty(), labels.reaches(source, target));
+        }
+        for (int u = 0; u < 300; u++) {
+            for (int e = sparse.offsets[u]; e < sparse.offsets[u + 1]; e++)
+                assertEquals(true, labels.reaches(u, sparse.targets[e]));
+        }
+        
+        // vertex programs: islands by label propagation, PageRank, neighbor degrees
+        PregelEngine pregel = new PregelEngine(weightedCsr);
+        PregelEngine.Result labelled = pregel.labelPropagation();
+        assertEquals(true, labelled.converged);
+        assertEquals(weightedCsr.numberOfTrees(), (int)Arrays.stream(labelled.values).distinct().count());
+        
+        CsrGraph ring = GraphGenerator.chain(4).toGraph().freeze();
+        GraphImpl ringGraph = GraphImpl.of(ring);
+        ringGraph.addEdge("n3", "n0");
+        PregelEngine.Result ranks = new PregelEngine(ringGraph.freeze()).pageRank(0.85, 100, 1e-12);
+        assertEquals(true, ranks.converged);
+        for (double rank: ranks.values)
+            assertEquals(true, Math.abs(rank - 0.25) < 1e-9);
+        PregelEngine.Result sourceDegrees = new PregelEngine(cities.freeze()).averageSourceDegree();
+        assertEquals(1, sourceDegrees.supersteps);
+        assertEquals(true, sourceDegrees.values[cities.freeze().idOf("a")] == 3.0);
+        assertEquals(true, sourceDegrees.values[cities.freeze().idOf("b")] == 7.0 / 3);
+        
+        // concurrent queries share workspaces, and can time out or be cancelled
+        try (TraversalService service = new TraversalService(wideCsr)) {
+            List<TraversalService.Query> queries = new ArrayList<TraversalService.Query>();
+            for (int q = 0; q < 64; q++)
+                queries.add(service.breadthFirstSearch(0, id -> {}, 10, TimeUnit.SECONDS));
+            for (TraversalService.Query query: queries)
+                assertEquals(bfs.reached, (int)query.join());
+            assertEquals(true, service.pooledWorkspaces() <= 64);
+            try (TraversalService deep = new TraversalService(chain.freeze())) {
+                assertEquals(links.length, (int)deep.depthFirstSearch(0, id -> {}, 10, TimeUnit.SECONDS).join());
+            }
+            
+            CountDownLatch blocked = new CountDownLatch(1);
+            TraversalService.Query slow = service.depthFirstSearch(0, id -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, 50, TimeUnit.MILLISECONDS);
+            try {
+                slow.join();
+                throw new RuntimeException("Assertion failed, was expecting a timeout");
+            } catch (CompletionException e) {
+                assertEquals(true, e.getCause() instanceof TimeoutException);
+            }
+            blocked.countDown();
+            // the visitor holds the traversal until the cancel has landed
+            CountDownLatch cancelling = new CountDownLatch(1);
+            AtomicInteger visitedBeforeStop = new AtomicInteger();
+            TraversalService.Query cancelled = service.breadthFirstSearch(0, id -> {
+                visitedBeforeStop.incrementAndGet();
+                try {
+                    cancelling.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, 10, TimeUnit.SECONDS);
+            cancelled.cancel(true);
+            cancelling.countDown();
+            assertEquals(true, cancelled.isCancelled());
+            cancelled.stopped.await();
+            assertEquals(true, visitedBeforeStop.get() <= TraversalService.CHECK_EVERY);
+            assertEquals(true, visitedBeforeStop.get() < bfs.reached);
+        }
+        
         System.out.println("Tests finished successfully");
     }
     
@@ -480,10 +5876,6 @@ class GraphDemo {
         g.reset();
         */
                 
-        // TODO: implement hasPathFromTo()
-        // TODO: make a topological sort (a left-to-right way of traversing the whole graph)
-        //       useful for example in Makefiles or build pipelines, where something has dependencies
-        // TODO: implement discovering of strongly connected components.
         
         // make this more usable, see examples here: https://www.baeldung.com/java-graphs 
         //                                     and here: https://github.com/google/guava/wiki/GraphsExplained
@@ -491,6 +5883,89 @@ class GraphDemo {
         
     }
     
+    /**
+     * Operations per second on a ConcurrentGraph, for a few mixes of writer and reader threads.
+     * Writers add random edges, readers run a BFS from a random node of the latest snapshot.
+     */
+    public void runThroughputTest() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long durationMillis = 2000;
+        for (double writerShare: new double[] { 1.0, 0.75, 0.5, 0.25, 0.0 }) {
+            ConcurrentGraph graph = new ConcurrentGraph(10);
+            Random seed = new Random(7);
+            for (int i = 0; i < 20000; i++)
+                graph.addEdge("n" + seed.nextInt(10000), "n" + seed.nextInt(10000));
+            
+            int writers = (int)Math.round(threads * writerShare);
+            LongAdder writes = new LongAdder();
+            LongAdder reads = new LongAdder();
+            AtomicBoolean running = new AtomicBoolean(true);
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final boolean writer = t < writers;
+                final Random rand = new Random(t);
+                workers.add(new Thread(() -> {
+                    while (running.get()) {
+                        if (writer) {
+                            graph.addEdge("n" + rand.nextInt(10000), "n" + rand.nextInt(10000));
+                            writes.increment();
+                        } else {
+                            CsrGraph snapshot = graph.snapshot();
+                            snapshot.breadthFirstSearch(rand.nextInt(snapshot.nodeCount()), id -> {});
+                            reads.increment();
+                        }
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            try {
+                Thread.sleep(durationMillis);
+                running.set(false);
+                for (Thread t: workers)
+                    t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            
+            System.out.println(writers + " writers, " + (threads - writers) + " readers: "
+                + (writes.sum() * 1000 / durationMillis) + " writes/s, "
+                + (reads.sum() * 1000 / durationMillis) + " traversals/s");
+        }
+    }
+    
+    public void runQueryLoadTest() {
+        CsrGraph graph = GraphGenerator.powerLaw(200000, 4, 42).toGraph().freeze();
+        int clients = 4 * Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int concurrency: new int[] { 1, clients, 16 * clients }) {
+            try (TraversalService service = new TraversalService(graph)) {
+                int queries = 2000;
+                long[] latencies = new long[queries];
+                Semaphore inFlight = new Semaphore(concurrency);
+                CountDownLatch done = new CountDownLatch(queries);
+                Random rand = new Random(7);
+                long started = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    final int index = q;
+                    inFlight.acquireUninterruptibly();
+                    TraversalService.Query query = service.breadthFirstSearch(rand.nextInt(graph.nodeCount()), id -> {}, 5, TimeUnit.SECONDS);
+                    query.whenComplete((visited, error) -> {
+                        latencies[index] = System.nanoTime() - query.submittedNanos;
+                        inFlight.release();
+                        done.countDown();
+                    });
+                }
+                done.await();
+                long elapsed = System.nanoTime() - started;
+                Arrays.sort(latencies);
+                System.out.println(concurrency + " in flight on " + (service.virtualThreads ? "virtual" : "platform") + " threads: "
+                    + (queries * 1000000000L / elapsed) + " queries/s, p50 " + latencies[queries / 2] / 1000 + "us, p99 "
+                    + latencies[queries * 99 / 100] / 1000 + "us, " + service.pooledWorkspaces() + " workspaces");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+    
     private void assertEquals(String expected, String value) {
         if (value == null && expected != null)
             throw new RuntimeException("Assertion failed, was expecting \"" + expected + "\", got null instead");
@@ -502,6 +5977,17 @@ class GraphDemo {
             throw new RuntimeException("Assertion failed, was expecting \"" + expected + "\", got \"" + value + "\" instead");
     }
     
+    private void assertEquals(boolean expected, boolean value) {
+        if (value != expected)
+            throw new RuntimeException("Assertion failed, was expecting " + expected + ", got " + value + " instead");
+    }
+    
+    private String keysOf(List<Node> nodes) {
+        if (nodes == null)
+            return null;
+        return nodes.stream().map(n -> n.key).collect(Collectors.joining(","));
+    }
+    
     private void assertEquals(int expected, int value) {
         if (value != expected)
             throw new RuntimeException("Assertion failed, was expecting " + expected + ", got " + value + " instead");
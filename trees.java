@@ -1,5 +1,6 @@
 import java.util.function.*;
 import java.util.*;
+import java.util.stream.*;
 import java.io.IOException;
 
 /** 
@@ -11,6 +12,11 @@ public class Trees {
     public static void main(String[] args) {
         TreeDemo demo = new TreeDemo();
         demo.runTests();
+        if (args.length > 0 && args[0].equals("bench")) {
+            // java trees.java bench [number of keys]
+            new TreeBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
         demo.runDemo();
     }
 }
@@ -19,6 +25,8 @@ interface Tree {
     public void add(Node n);
     public void remove(Node n);
     public void clear();
+    public void bulkLoad(Node[] nodes, boolean sorted);  // O(n) when sorted, replaces the content
+    public void merge(Node[] sorted);                    // adds a sorted batch
     
     public void preOrderTraverse(Consumer<Node> consumer);
     public void inOrderTraverse(Consumer<Node> consumer);
@@ -30,15 +38,44 @@ interface Tree {
     public Node successor(Node node);    // O(lg n)
     public Node predecessor(Node node);  // O(lg n)
     
+    public int size();                   // O(1)
+    public Node select(int index);       // O(lg n), the node with index smaller keys before it
+    public int rank(String key);         // O(lg n), number of keys smaller than key
+    public int countInRange(String low, String high);  // O(lg n), keys in [low, high]
+    
+    public Node ceiling(String key);     // O(lg n), smallest key >= key
+    public Node floor(String key);       // O(lg n), largest key <= key
+    public TreeCursor cursor();
+    public Stream<Node> range(String low, String high);  // keys in [low, high], in order
+    
     public void print();
     public String debugString();
     public int maxHeight();
 }
 
+/**
+ * A position in a tree that can be moved to a key and then stepped in either direction.
+ * Stepping through k consecutive nodes costs O(k + lg n) in total, not O(k lg n).
+ */
+interface TreeCursor {
+    public boolean seekFirst();
+    public boolean seekLast();
+    public boolean seekCeiling(String key);  // at the smallest key >= key
+    public boolean seekFloor(String key);    // at the largest key <= key
+    
+    public boolean valid();                  // false once stepped off either end
+    public Node current();
+    public void next();
+    public void previous();
+    public int next(Node[] batch);           // copies current and the following nodes, moving past them
+}
+
 class Node { 
     public Node(String key) { this.key = key; }
     String key;
     Node parent, left, right;
+    boolean red;    // only used by red-black trees
+    int size;       // nodes in the subtree rooted here
 }
 
 class TreeImpl implements Tree {
@@ -53,9 +90,10 @@ class TreeImpl implements Tree {
         Node trailing = null;
         Node target = root;
         
-        // find the appropriate place to insert
+        // find the appropriate place to insert, every subtree on the way gains a node
         while (target != null) {
             trailing = target;
+            trailing.size++;
             int cmp = node.key.compareTo(target.key);
             target = cmp < 0 ? target.left : target.right;
         }
@@ -64,6 +102,7 @@ class TreeImpl implements Tree {
         node.parent = trailing;
         node.left = null;
         node.right = null;
+        node.size = 1;
         
         if (trailing == null) {
             root = node;
@@ -76,6 +115,8 @@ class TreeImpl implements Tree {
     }
     
     public void remove(Node node) {
+        shrinkAbove(node);
+        
         // if node has no children, we simply remove it
         if (node.left == null && node.right == null) {
             transplant(node, null);
@@ -99,10 +140,25 @@ class TreeImpl implements Tree {
             transplant(node, successor);
             successor.left = node.left;
             successor.left.parent = successor;
+            successor.size = node.size;
         }
     }
     
-    private void transplant(Node targetTree, Node newSubtree) {
+    /**
+     * Takes one node off the size of every subtree losing a node when this one is removed:
+     * its ancestors, or with two children, everything above its successor, which moves up.
+     */
+    void shrinkAbove(Node node) {
+        Node moved = node.left != null && node.right != null ? minimumFrom(node.right) : node;
+        for (Node n = moved.parent; n != null; n = n.parent)
+            n.size--;
+    }
+    
+    static int sizeOf(Node node) {
+        return node == null ? 0 : node.size;
+    }
+    
+    void transplant(Node targetTree, Node newSubtree) {
         // make parent of targetTree point to newSubtree
         if (targetTree.parent == null)
             // targetTree is the root
@@ -124,62 +180,222 @@ class TreeImpl implements Tree {
         root = null;
     }
     
-    public void preOrderTraverse(Consumer<Node> consumer) {
-        preOrderFrom(root, consumer);
+    /**
+     * Replaces the content with a perfectly balanced tree of the nodes. Sorted input is
+     * linked up in O(n) without comparing keys, anything else gets a parallel sort first.
+     * When the last level is not full its nodes are colored red and all others black,
+     * so the result is also a valid red-black tree.
+     */
+    public void bulkLoad(Node[] nodes, boolean sorted) {
+        if (!sorted) {
+            nodes = nodes.clone();
+            Arrays.parallelSort(nodes, (a, b) -> a.key.compareTo(b.key));
+        }
+        int n = nodes.length;
+        int height = 31 - Integer.numberOfLeadingZeros(Math.max(1, n));
+        int redDepth = n == (2 << height) - 1 ? -1 : height;
+        root = linkBalanced(nodes, 0, n, null, 0, redDepth);
     }
     
-    private void preOrderFrom(Node n, Consumer<Node> consumer) {
-        if (n == null)
+    private Node linkBalanced(Node[] nodes, int from, int to, Node parent, int depth, int redDepth) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        Node node = nodes[mid];
+        node.parent = parent;
+        node.red = depth == redDepth;
+        node.size = to - from;
+        node.left = linkBalanced(nodes, from, mid, node, depth + 1, redDepth);
+        node.right = linkBalanced(nodes, mid + 1, to, node, depth + 1, redDepth);
+        return node;
+    }
+    
+    /**
+     * Adds a batch of nodes sorted by key. Small batches are added one by one, larger ones
+     * are merged with the existing nodes in order and the whole tree is rebuilt, in O(n + m).
+     */
+    public void merge(Node[] sorted) {
+        int n = size();
+        int m = sorted.length;
+        if ((long)m * (32 - Integer.numberOfLeadingZeros(n + m)) < n) {
+            for (Node node: sorted)
+                add(node);
             return;
-        consumer.accept(n);
-        preOrderFrom(n.left, consumer);
-        preOrderFrom(n.right, consumer);
+        }
+        
+        Node[] merged = new Node[n + m];
+        int i = 0;
+        int j = 0;
+        for (Node node = minimum(); node != null; node = successor(node)) {
+            while (j < m && sorted[j].key.compareTo(node.key) < 0)
+                merged[i++] = sorted[j++];
+            merged[i++] = node;
+        }
+        while (j < m)
+            merged[i++] = sorted[j++];
+        bulkLoad(merged, true);
     }
     
-    public void inOrderTraverse(Consumer<Node> consumer) {
-        inOrderFrom(root, consumer);
+    public void preOrderTraverse(Consumer<Node> consumer) {
+        walk(consumer, null, null);
     }
     
-    private void inOrderFrom(Node n, Consumer<Node> consumer) {
-        if (n == null)
-            return;
-        preOrderFrom(n.left, consumer);
-        consumer.accept(n);
-        preOrderFrom(n.right, consumer);
+    public void inOrderTraverse(Consumer<Node> consumer) {
+        walk(null, consumer, null);
     }
     
     public void postOrderTraverse(Consumer<Node> consumer) {
-        postOrderFrom(root, consumer);
+        walk(null, null, consumer);
     }
     
-    private void postOrderFrom(Node n, Consumer<Node> consumer) {
-        if (n == null)
-            return;
-        preOrderFrom(n.left, consumer);
-        preOrderFrom(n.right, consumer);
-        consumer.accept(n);
+    /**
+     * Walks the tree with parent pointers instead of recursion or a stack, so it needs no
+     * memory and cannot overflow on degenerate trees. Where we came from tells what is next:
+     * from the parent we go left, from the left child we go right, from the right child we go up.
+     * Each node is passed to pre before its subtrees, in between them and post after them.
+     */
+    private void walk(Consumer<Node> pre, Consumer<Node> in, Consumer<Node> post) {
+        Node node = root;
+        Node previous = null;
+        while (node != null) {
+            Node next;
+            if (previous == node.parent) {
+                if (pre != null)
+                    pre.accept(node);
+                if (node.left != null) {
+                    next = node.left;
+                } else {
+                    if (in != null)
+                        in.accept(node);
+                    next = node.right != null ? node.right : node.parent;
+                }
+            } else if (previous == node.left) {
+                if (in != null)
+                    in.accept(node);
+                next = node.right != null ? node.right : node.parent;
+            } else {
+                next = node.parent;
+            }
+            
+            // leaving upwards means both subtrees are done
+            if (next == node.parent && post != null)
+                post.accept(node);
+            previous = node;
+            node = next;
+        }
     }
     
     public Node find(String key) {
         return findFrom(root, key);
     }
     
-    private Node findFrom(Node node, String key) {
-        if (node == null)
+    Node findFrom(Node node, String key) {
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp == 0)
+                return node;
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+    
+    public int size() {
+        return sizeOf(root);
+    }
+    
+    public Node select(int index) {
+        if (index < 0 || index >= size())
             return null;
         
-        int cmp = node.key.compareTo(key);
-        if (cmp == 0)
-            return node;
-        
-        return cmp < 0 ? findFrom(node.left, key) : findFrom(node.right, key);
+        // skip whole left subtrees by their size
+        Node node = root;
+        while (true) {
+            int leftSize = sizeOf(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+    
+    public int rank(String key) {
+        return countBelow(key, false);
+    }
+    
+    public int countInRange(String low, String high) {
+        if (low.compareTo(high) > 0)
+            return 0;
+        return countBelow(high, true) - countBelow(low, false);
+    }
+    
+    /**
+     * Keys smaller than key, or also equal to it when inclusive.
+     */
+    private int countBelow(String key, boolean inclusive) {
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp > 0 || (cmp == 0 && inclusive)) {
+                count += sizeOf(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+    
+    public Node ceiling(String key) {
+        // the last node we went left from is the smallest key above
+        Node candidate = null;
+        Node node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp <= 0) {
+                candidate = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return candidate;
+    }
+    
+    public Node floor(String key) {
+        Node candidate = null;
+        Node node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp >= 0) {
+                candidate = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return candidate;
+    }
+    
+    public TreeCursor cursor() {
+        return new TreeCursorImpl(this);
+    }
+    
+    public Stream<Node> range(String low, String high) {
+        TreeCursor cursor = cursor();
+        cursor.seekCeiling(low);
+        return TreeCursorImpl.stream(cursor, high);
     }
     
     public Node minimum() {
         return minimumFrom(root);
     }
     
-    private Node minimumFrom(Node node) {
+    Node minimumFrom(Node node) {
         if (node == null)
             return null;
         
@@ -192,7 +408,7 @@ class TreeImpl implements Tree {
         return maximumFrom(root);
     }
     
-    private Node maximumFrom(Node node) {
+    Node maximumFrom(Node node) {
         if (node == null)
             return null;
         
@@ -236,54 +452,1165 @@ class TreeImpl implements Tree {
     }
     
     public void print() {
-        printFrom(root, "", "");
+        int depth = 0;
+        Node node = root;
+        Node previous = null;
+        while (node != null) {
+            Node next;
+            if (previous == node.parent) {
+                String side = node.parent == null ? "" : node == node.parent.left ? " L " : " R ";
+                System.out.println(" . ".repeat(depth) + side + "\"" + node.key + "\"");
+                next = node.left != null ? node.left : node.right != null ? node.right : node.parent;
+            } else if (previous == node.left) {
+                next = node.right != null ? node.right : node.parent;
+            } else {
+                next = node.parent;
+            }
+            
+            depth += next == node.parent ? -1 : 1;
+            previous = node;
+            node = next;
+        }
     }
     
-    private void printFrom(Node node, String prefix, String side) {
-        if (node == null)
-            return;
+    public String debugString() {
+        StringBuilder s = new StringBuilder();
+        Node node = root;
+        Node previous = null;
+        while (node != null) {
+            Node next;
+            if (previous == node.parent) {
+                s.append("(").append(node.key);
+                next = node.left != null ? node.left : node.right != null ? node.right : node.parent;
+            } else if (previous == node.left) {
+                next = node.right != null ? node.right : node.parent;
+            } else {
+                next = node.parent;
+            }
+            
+            if (next == node.left && next != null)
+                s.append(", L");
+            else if (next == node.right && next != null)
+                s.append(", R");
+            else
+                s.append(")");
+            previous = node;
+            node = next;
+        }
+        return s.toString();
+    }
+    
+    /**
+     * Edges on the longest path down from the root.
+     */
+    public int maxHeight() {
+        int height = 0;
+        int depth = 0;
+        Node node = root;
+        Node previous = null;
+        while (node != null) {
+            Node next;
+            if (previous == node.parent)
+                next = node.left != null ? node.left : node.right != null ? node.right : node.parent;
+            else if (previous == node.left)
+                next = node.right != null ? node.right : node.parent;
+            else
+                next = node.parent;
+            
+            if (next == node.parent) {
+                depth--;
+            } else {
+                depth++;
+                height = Math.max(height, depth);
+            }
+            previous = node;
+            node = next;
+        }
+        return height;
+    }
+}
 
-        System.out.println(prefix + side + "\"" + node.key + "\"");
-        printFrom(node.left,  prefix + " . ", " L ");
-        printFrom(node.right, prefix + " . ", " R ");
+/**
+ * A cursor over a binary tree, moving with successor and predecessor. Over a whole scan
+ * every edge is walked once down and once up, so a step is O(1) amortized.
+ */
+class TreeCursorImpl implements TreeCursor {
+    final TreeImpl tree;
+    Node current;
+    
+    TreeCursorImpl(TreeImpl tree) {
+        this.tree = tree;
     }
     
-    public String debugString() {
-        return debugStringFrom(root);
+    /**
+     * The nodes from the cursor's position up to and including high, in order.
+     */
+    static Stream<Node> stream(TreeCursor cursor, String high) {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<Node>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            public boolean tryAdvance(Consumer<? super Node> action) {
+                if (!cursor.valid() || cursor.current().key.compareTo(high) > 0)
+                    return false;
+                action.accept(cursor.current());
+                cursor.next();
+                return true;
+            }
+        }, false);
+    }
+    
+    public boolean seekFirst() {
+        current = tree.minimum();
+        return current != null;
+    }
+    
+    public boolean seekLast() {
+        current = tree.maximum();
+        return current != null;
+    }
+    
+    public boolean seekCeiling(String key) {
+        current = tree.ceiling(key);
+        return current != null;
+    }
+    
+    public boolean seekFloor(String key) {
+        current = tree.floor(key);
+        return current != null;
+    }
+    
+    public boolean valid() {
+        return current != null;
+    }
+    
+    public Node current() {
+        return current;
+    }
+    
+    public void next() {
+        current = tree.successor(current);
+    }
+    
+    public void previous() {
+        current = tree.predecessor(current);
+    }
+    
+    public int next(Node[] batch) {
+        int count = 0;
+        while (count < batch.length && current != null) {
+            batch[count++] = current;
+            current = tree.successor(current);
+        }
+        return count;
+    }
+}
+
+/**
+ * The red-black tree the Trees description promises: a TreeImpl whose add and remove
+ * recolor and rotate nodes afterwards, so that no path from the root is more than twice
+ * as long as any other, and the height stays below 2 lg(n + 1) whatever the input order.
+ */
+class RedBlackTreeImpl extends TreeImpl {
+    
+    public void add(Node node) {
+        super.add(node);
+        node.red = true;
+        addFixup(node);
+    }
+    
+    private void addFixup(Node node) {
+        // only a red node under a red parent breaks the rules, the parent is never the root
+        while (node.parent != null && node.parent.red) {
+            Node grandparent = node.parent.parent;
+            if (node.parent == grandparent.left) {
+                Node uncle = grandparent.right;
+                if (isRed(uncle)) {
+                    // push the blackness down from the grandparent, and go check it
+                    node.parent.red = false;
+                    uncle.red = false;
+                    grandparent.red = true;
+                    node = grandparent;
+                } else {
+                    // make node an outer grandchild, then rotate the grandparent towards the uncle
+                    if (node == node.parent.right) {
+                        node = node.parent;
+                        rotateLeft(node);
+                    }
+                    node.parent.red = false;
+                    grandparent.red = true;
+                    rotateRight(grandparent);
+                }
+            } else {
+                Node uncle = grandparent.left;
+                if (isRed(uncle)) {
+                    node.parent.red = false;
+                    uncle.red = false;
+                    grandparent.red = true;
+                    node = grandparent;
+                } else {
+                    if (node == node.parent.left) {
+                        node = node.parent;
+                        rotateRight(node);
+                    }
+                    node.parent.red = false;
+                    grandparent.red = true;
+                    rotateLeft(grandparent);
+                }
+            }
+        }
+        root.red = false;
+    }
+    
+    public void remove(Node node) {
+        // removed is the node taken out of its place: node itself, or its successor
+        // moving up to replace it. Its child moves into that place, and if a black
+        // node was taken out, that child's path is now missing one black node.
+        shrinkAbove(node);
+        boolean removedRed = node.red;
+        Node child;
+        Node childParent;
+        if (node.left == null) {
+            child = node.right;
+            childParent = node.parent;
+            transplant(node, node.right);
+        } else if (node.right == null) {
+            child = node.left;
+            childParent = node.parent;
+            transplant(node, node.left);
+        } else {
+            Node successor = minimumFrom(node.right);
+            removedRed = successor.red;
+            child = successor.right;
+            if (successor.parent == node) {
+                childParent = successor;
+            } else {
+                childParent = successor.parent;
+                transplant(successor, successor.right);
+                successor.right = node.right;
+                successor.right.parent = successor;
+            }
+            transplant(node, successor);
+            successor.left = node.left;
+            successor.left.parent = successor;
+            successor.red = node.red;
+            successor.size = node.size;
+        }
+        
+        if (!removedRed)
+            removeFixup(child, childParent);
     }
     
-    private String debugStringFrom(Node node) {
+    private void removeFixup(Node node, Node parent) {
+        // node (possibly null) carries an extra black, move it up until it can be absorbed
+        while (node != root && !isRed(node)) {
+            if (node == parent.left) {
+                Node sibling = parent.right;
+                if (isRed(sibling)) {
+                    sibling.red = false;
+                    parent.red = true;
+                    rotateLeft(parent);
+                    sibling = parent.right;
+                }
+                if (!isRed(sibling.left) && !isRed(sibling.right)) {
+                    sibling.red = true;
+                    node = parent;
+                    parent = node.parent;
+                } else {
+                    if (!isRed(sibling.right)) {
+                        sibling.left.red = false;
+                        sibling.red = true;
+                        rotateRight(sibling);
+                        sibling = parent.right;
+                    }
+                    sibling.red = parent.red;
+                    parent.red = false;
+                    sibling.right.red = false;
+                    rotateLeft(parent);
+                    node = root;
+                }
+            } else {
+                Node sibling = parent.left;
+                if (isRed(sibling)) {
+                    sibling.red = false;
+                    parent.red = true;
+                    rotateRight(parent);
+                    sibling = parent.left;
+                }
+                if (!isRed(sibling.left) && !isRed(sibling.right)) {
+                    sibling.red = true;
+                    node = parent;
+                    parent = node.parent;
+                } else {
+                    if (!isRed(sibling.left)) {
+                        sibling.right.red = false;
+                        sibling.red = true;
+                        rotateLeft(sibling);
+                        sibling = parent.left;
+                    }
+                    sibling.red = parent.red;
+                    parent.red = false;
+                    sibling.left.red = false;
+                    rotateRight(parent);
+                    node = root;
+                }
+            }
+        }
+        if (node != null)
+            node.red = false;
+    }
+    
+    private static boolean isRed(Node node) {
+        // missing children count as black leaves
+        return node != null && node.red;
+    }
+    
+    private void rotateLeft(Node node) {
+        Node pivot = node.right;
+        node.right = pivot.left;
+        if (pivot.left != null)
+            pivot.left.parent = node;
+        replaceChild(node, pivot);
+        pivot.left = node;
+        node.parent = pivot;
+        pivot.size = node.size;
+        node.size = sizeOf(node.left) + sizeOf(node.right) + 1;
+    }
+    
+    private void rotateRight(Node node) {
+        Node pivot = node.left;
+        node.left = pivot.right;
+        if (pivot.right != null)
+            pivot.right.parent = node;
+        replaceChild(node, pivot);
+        pivot.right = node;
+        node.parent = pivot;
+        pivot.size = node.size;
+        node.size = sizeOf(node.left) + sizeOf(node.right) + 1;
+    }
+    
+    private void replaceChild(Node node, Node replacement) {
+        replacement.parent = node.parent;
+        if (node.parent == null)
+            root = replacement;
+        else if (node == node.parent.left)
+            node.parent.left = replacement;
+        else
+            node.parent.right = replacement;
+    }
+    
+    /**
+     * Checks the order of keys, parent pointers and the red-black rules, throwing on the
+     * first violation. Returns the number of black nodes on every path from the root.
+     */
+    public int validate() {
+        if (isRed(root))
+            throw new RuntimeException("Red root \"" + root.key + "\"");
+        if (root != null && root.parent != null)
+            throw new RuntimeException("Root \"" + root.key + "\" has a parent");
+        return validateFrom(root, null, null);
+    }
+    
+    private int validateFrom(Node node, String low, String high) {
         if (node == null)
-            return "";
+            return 1;
+        if ((low != null && node.key.compareTo(low) < 0) || (high != null && node.key.compareTo(high) > 0))
+            throw new RuntimeException("Key \"" + node.key + "\" is out of order");
+        for (Node child: new Node[] { node.left, node.right }) {
+            if (child == null)
+                continue;
+            if (child.parent != node)
+                throw new RuntimeException("Broken parent pointer at \"" + child.key + "\"");
+            if (node.red && child.red)
+                throw new RuntimeException("Red node \"" + child.key + "\" under red \"" + node.key + "\"");
+        }
         
-        String s = "(" + node.key + "";
-        if (node.left != null)
-            s += ", L" + debugStringFrom(node.left);
-        if (node.right != null)
-            s += ", R" + debugStringFrom(node.right);
-        s += ")";
+        if (node.size != sizeOf(node.left) + sizeOf(node.right) + 1)
+            throw new RuntimeException("Wrong subtree size " + node.size + " at \"" + node.key + "\"");
+        int leftBlack = validateFrom(node.left, low, node.key);
+        int rightBlack = validateFrom(node.right, node.key, high);
+        if (leftBlack != rightBlack)
+            throw new RuntimeException("Black heights differ under \"" + node.key + "\": " + leftBlack + " vs " + rightBlack);
+        return leftBlack + (node.red ? 0 : 1);
+    }
+}
+
+/**
+ * A B+-tree: wide pages holding up to fanout keys in contiguous arrays, so a lookup touches
+ * a handful of pages instead of one node per level of a binary tree. Nodes only live in the
+ * leaves, which are linked both ways for scans. Inner pages keep, next to every child, the
+ * number of keys under it, for the order statistics. Pages emptied by merges are kept in a
+ * pool and reused by later splits.
+ * Separators bound their neighbors: every key left of separator s is <= s, every key right
+ * of it is >= s. Removing keys never breaks that, so only splits and merges update them.
+ */
+class BPlusTreeImpl implements Tree {
+    static final int DEFAULT_FANOUT = 64;
+    static final int POOL_LIMIT = 1024;
+    
+    final int fanout;
+    Page root;
+    Page head, tail;    // first and last leaves
+    int levels;         // 1 while the root is a leaf
+    private final ArrayDeque<Page> leafPool = new ArrayDeque<Page>();
+    private final ArrayDeque<Page> innerPool = new ArrayDeque<Page>();
+    private String splitKey;
+    
+    static class Page {
+        final boolean leaf;
+        int count;               // keys in a leaf, children in an inner page
+        final String[] keys;     // separators in an inner page, count - 1 of them
+        final Node[] values;     // leaves only
+        final Page[] children;   // inner pages only
+        final int[] counts;      // keys under each child, inner pages only
+        Page next, previous;     // leaves only
         
-        return s;
+        Page(boolean leaf, int fanout) {
+            // one spare slot, pages split right after they overflow
+            this.leaf = leaf;
+            keys = new String[fanout + 1];
+            values = leaf ? new Node[fanout + 1] : null;
+            children = leaf ? null : new Page[fanout + 1];
+            counts = leaf ? null : new int[fanout + 1];
+        }
     }
     
-    public int maxHeight() {
-        return maxHeightFrom(root);
+    public BPlusTreeImpl() {
+        this(DEFAULT_FANOUT);
+    }
+    
+    public BPlusTreeImpl(int fanout) {
+        if (fanout < 4)
+            throw new IllegalArgumentException("Fanout must be at least 4, was " + fanout);
+        this.fanout = fanout;
+        clear();
+    }
+    
+    private Page newPage(boolean leaf) {
+        Page page = leaf ? leafPool.poll() : innerPool.poll();
+        return page != null ? page : new Page(leaf, fanout);
+    }
+    
+    private void recycle(Page page) {
+        Arrays.fill(page.keys, null);
+        if (page.leaf)
+            Arrays.fill(page.values, null);
+        else
+            Arrays.fill(page.children, null);
+        page.count = 0;
+        page.next = null;
+        page.previous = null;
+        ArrayDeque<Page> pool = page.leaf ? leafPool : innerPool;
+        if (pool.size() < POOL_LIMIT)
+            pool.push(page);
+    }
+    
+    private void recycleAll(Page page) {
+        if (!page.leaf) {
+            for (int i = 0; i < page.count; i++)
+                recycleAll(page.children[i]);
+        }
+        recycle(page);
+    }
+    
+    public int pooledPages() {
+        return leafPool.size() + innerPool.size();
+    }
+    
+    private static int lowerBound(String[] keys, int length, String key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    private static int upperBound(String[] keys, int length, String key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    private static int total(Page page) {
+        if (page.leaf)
+            return page.count;
+        int sum = 0;
+        for (int i = 0; i < page.count; i++)
+            sum += page.counts[i];
+        return sum;
+    }
+    
+    public void add(Node node) {
+        Page right = insert(root, node.key, node);
+        if (right != null) {
+            Page newRoot = newPage(false);
+            newRoot.children[0] = root;
+            newRoot.children[1] = right;
+            newRoot.keys[0] = splitKey;
+            newRoot.counts[0] = total(root);
+            newRoot.counts[1] = total(right);
+            newRoot.count = 2;
+            root = newRoot;
+            levels++;
+        }
+    }
+    
+    /**
+     * Adds the key under page, returning the new right sibling if the page had to split.
+     */
+    private Page insert(Page page, String key, Node value) {
+        if (page.leaf) {
+            // equal keys go after the ones already there
+            int position = upperBound(page.keys, page.count, key);
+            System.arraycopy(page.keys, position, page.keys, position + 1, page.count - position);
+            System.arraycopy(page.values, position, page.values, position + 1, page.count - position);
+            page.keys[position] = key;
+            page.values[position] = value;
+            page.count++;
+            return page.count <= fanout ? null : splitLeaf(page);
+        }
+        
+        int i = upperBound(page.keys, page.count - 1, key);
+        page.counts[i]++;
+        Page right = insert(page.children[i], key, value);
+        if (right == null)
+            return null;
+        
+        System.arraycopy(page.children, i + 1, page.children, i + 2, page.count - i - 1);
+        System.arraycopy(page.counts, i + 1, page.counts, i + 2, page.count - i - 1);
+        System.arraycopy(page.keys, i, page.keys, i + 1, page.count - 1 - i);
+        page.children[i + 1] = right;
+        page.keys[i] = splitKey;
+        page.counts[i + 1] = total(right);
+        page.counts[i] -= page.counts[i + 1];
+        page.count++;
+        return page.count <= fanout ? null : splitInner(page);
+    }
+    
+    private Page splitLeaf(Page page) {
+        Page right = newPage(true);
+        int keep = page.count / 2;
+        int moved = page.count - keep;
+        System.arraycopy(page.keys, keep, right.keys, 0, moved);
+        System.arraycopy(page.values, keep, right.values, 0, moved);
+        Arrays.fill(page.keys, keep, page.count, null);
+        Arrays.fill(page.values, keep, page.count, null);
+        page.count = keep;
+        right.count = moved;
+        
+        right.next = page.next;
+        if (page.next != null)
+            page.next.previous = right;
+        else
+            tail = right;
+        page.next = right;
+        right.previous = page;
+        splitKey = right.keys[0];
+        return right;
+    }
+    
+    private Page splitInner(Page page) {
+        // the separator between the halves moves up to the parent
+        Page right = newPage(false);
+        int keep = page.count / 2;
+        int moved = page.count - keep;
+        splitKey = page.keys[keep - 1];
+        System.arraycopy(page.children, keep, right.children, 0, moved);
+        System.arraycopy(page.counts, keep, right.counts, 0, moved);
+        System.arraycopy(page.keys, keep, right.keys, 0, moved - 1);
+        Arrays.fill(page.children, keep, page.count, null);
+        Arrays.fill(page.keys, keep - 1, page.count - 1, null);
+        page.count = keep;
+        right.count = moved;
+        return right;
+    }
+    
+    public void remove(Node node) {
+        if (!delete(root, node.key, node))
+            return;
+        if (!root.leaf && root.count == 1) {
+            Page old = root;
+            root = root.children[0];
+            recycle(old);
+            levels--;
+        }
+    }
+    
+    private boolean delete(Page page, String key, Node node) {
+        if (page.leaf) {
+            for (int i = lowerBound(page.keys, page.count, key); i < page.count && page.keys[i].equals(key); i++) {
+                if (page.values[i] != node)
+                    continue;
+                System.arraycopy(page.keys, i + 1, page.keys, i, page.count - i - 1);
+                System.arraycopy(page.values, i + 1, page.values, i, page.count - i - 1);
+                page.count--;
+                page.keys[page.count] = null;
+                page.values[page.count] = null;
+                return true;
+            }
+            return false;
+        }
+        
+        // equal keys may be spread over several children
+        int first = lowerBound(page.keys, page.count - 1, key);
+        int last = upperBound(page.keys, page.count - 1, key);
+        for (int i = first; i <= last; i++) {
+            if (delete(page.children[i], key, node)) {
+                page.counts[i]--;
+                if (page.children[i].count < fanout / 2)
+                    rebalance(page, i);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Fixes an underfull child by merging it with a sibling, or if both are too full for
+     * that, by moving entries over from the sibling.
+     */
+    private void rebalance(Page page, int child) {
+        int a = child > 0 ? child - 1 : child;
+        Page left = page.children[a];
+        Page right = page.children[a + 1];
+        if (left.count + right.count <= fanout) {
+            merge(page, a, left, right);
+        } else if (left.leaf) {
+            shiftLeaves(left, right);
+            page.keys[a] = right.keys[0];
+            page.counts[a] = left.count;
+            page.counts[a + 1] = right.count;
+        } else {
+            page.keys[a] = shiftInner(left, page.keys[a], right);
+            page.counts[a] = total(left);
+            page.counts[a + 1] = total(right);
+        }
+    }
+    
+    private void merge(Page page, int a, Page left, Page right) {
+        if (left.leaf) {
+            System.arraycopy(right.keys, 0, left.keys, left.count, right.count);
+            System.arraycopy(right.values, 0, left.values, left.count, right.count);
+            left.next = right.next;
+            if (right.next != null)
+                right.next.previous = left;
+            else
+                tail = left;
+        } else {
+            left.keys[left.count - 1] = page.keys[a];
+            System.arraycopy(right.keys, 0, left.keys, left.count, right.count - 1);
+            System.arraycopy(right.children, 0, left.children, left.count, right.count);
+            System.arraycopy(right.counts, 0, left.counts, left.count, right.count);
+        }
+        left.count += right.count;
+        
+        page.counts[a] += page.counts[a + 1];
+        System.arraycopy(page.children, a + 2, page.children, a + 1, page.count - a - 2);
+        System.arraycopy(page.counts, a + 2, page.counts, a + 1, page.count - a - 2);
+        System.arraycopy(page.keys, a + 1, page.keys, a, page.count - a - 2);
+        page.count--;
+        page.children[page.count] = null;
+        page.keys[page.count - 1] = null;
+        recycle(right);
+    }
+    
+    private void shiftLeaves(Page left, Page right) {
+        int target = (left.count + right.count) / 2;
+        if (left.count > target) {
+            int moved = left.count - target;
+            System.arraycopy(right.keys, 0, right.keys, moved, right.count);
+            System.arraycopy(right.values, 0, right.values, moved, right.count);
+            System.arraycopy(left.keys, target, right.keys, 0, moved);
+            System.arraycopy(left.values, target, right.values, 0, moved);
+            Arrays.fill(left.keys, target, left.count, null);
+            Arrays.fill(left.values, target, left.count, null);
+            left.count -= moved;
+            right.count += moved;
+        } else {
+            int moved = target - left.count;
+            System.arraycopy(right.keys, 0, left.keys, left.count, moved);
+            System.arraycopy(right.values, 0, left.values, left.count, moved);
+            System.arraycopy(right.keys, moved, right.keys, 0, right.count - moved);
+            System.arraycopy(right.values, moved, right.values, 0, right.count - moved);
+            Arrays.fill(right.keys, right.count - moved, right.count, null);
+            Arrays.fill(right.values, right.count - moved, right.count, null);
+            left.count += moved;
+            right.count -= moved;
+        }
+    }
+    
+    /**
+     * Moves children between inner siblings, rotating them through the separator between
+     * the two; returns the new separator.
+     */
+    private String shiftInner(Page left, String separator, Page right) {
+        int target = (left.count + right.count) / 2;
+        if (left.count > target) {
+            int moved = left.count - target;
+            System.arraycopy(right.children, 0, right.children, moved, right.count);
+            System.arraycopy(right.counts, 0, right.counts, moved, right.count);
+            System.arraycopy(right.keys, 0, right.keys, moved, right.count - 1);
+            right.keys[moved - 1] = separator;
+            System.arraycopy(left.children, target, right.children, 0, moved);
+            System.arraycopy(left.counts, target, right.counts, 0, moved);
+            System.arraycopy(left.keys, target, right.keys, 0, moved - 1);
+            separator = left.keys[target - 1];
+            Arrays.fill(left.children, target, left.count, null);
+            Arrays.fill(left.keys, target - 1, left.count - 1, null);
+            left.count -= moved;
+            right.count += moved;
+        } else {
+            int moved = target - left.count;
+            left.keys[left.count - 1] = separator;
+            System.arraycopy(right.children, 0, left.children, left.count, moved);
+            System.arraycopy(right.counts, 0, left.counts, left.count, moved);
+            System.arraycopy(right.keys, 0, left.keys, left.count, moved - 1);
+            separator = right.keys[moved - 1];
+            System.arraycopy(right.children, moved, right.children, 0, right.count - moved);
+            System.arraycopy(right.counts, moved, right.counts, 0, right.count - moved);
+            System.arraycopy(right.keys, moved, right.keys, 0, right.count - moved - 1);
+            Arrays.fill(right.children, right.count - moved, right.count, null);
+            Arrays.fill(right.keys, right.count - moved - 1, right.count - 1, null);
+            left.count += moved;
+            right.count -= moved;
+        }
+        return separator;
+    }
+    
+    public void clear() {
+        if (root != null)
+            recycleAll(root);
+        root = newPage(true);
+        head = root;
+        tail = root;
+        levels = 1;
+    }
+    
+    /**
+     * Fills leaves and then each level of inner pages as evenly as possible from the sorted
+     * nodes, in O(n) and without comparing keys. Unsorted input gets a parallel sort first.
+     */
+    public void bulkLoad(Node[] nodes, boolean sorted) {
+        if (!sorted) {
+            nodes = nodes.clone();
+            Arrays.parallelSort(nodes, (a, b) -> a.key.compareTo(b.key));
+        }
+        recycleAll(root);
+        int n = nodes.length;
+        if (n == 0) {
+            root = null;
+            clear();
+            return;
+        }
+        
+        int pages = (n + fanout - 1) / fanout;
+        Page[] level = new Page[pages];
+        String[] firstKeys = new String[pages];
+        int[] sizes = new int[pages];
+        Page previous = null;
+        for (int p = 0, from = 0; p < pages; p++) {
+            int to = (int)((long)n * (p + 1) / pages);
+            Page leaf = newPage(true);
+            for (int i = from; i < to; i++) {
+                leaf.keys[i - from] = nodes[i].key;
+                leaf.values[i - from] = nodes[i];
+            }
+            leaf.count = to - from;
+            leaf.previous = previous;
+            if (previous != null)
+                previous.next = leaf;
+            previous = leaf;
+            level[p] = leaf;
+            firstKeys[p] = nodes[from].key;
+            sizes[p] = leaf.count;
+            from = to;
+        }
+        head = level[0];
+        tail = previous;
+        levels = 1;
+        
+        while (pages > 1) {
+            int parents = (pages + fanout - 1) / fanout;
+            Page[] upper = new Page[parents];
+            String[] upperFirstKeys = new String[parents];
+            int[] upperSizes = new int[parents];
+            for (int p = 0, from = 0; p < parents; p++) {
+                int to = (int)((long)pages * (p + 1) / parents);
+                Page inner = newPage(false);
+                for (int c = from; c < to; c++) {
+                    inner.children[c - from] = level[c];
+                    inner.counts[c - from] = sizes[c];
+                    if (c > from)
+                        inner.keys[c - from - 1] = firstKeys[c];
+                    upperSizes[p] += sizes[c];
+                }
+                inner.count = to - from;
+                upper[p] = inner;
+                upperFirstKeys[p] = firstKeys[from];
+                from = to;
+            }
+            level = upper;
+            firstKeys = upperFirstKeys;
+            sizes = upperSizes;
+            pages = parents;
+            levels++;
+        }
+        root = level[0];
+    }
+    
+    /**
+     * Adds a sorted batch, one by one if it is small, otherwise by merging it with a scan
+     * of the leaves and bulk loading the result, in O(n + m).
+     */
+    public void merge(Node[] sorted) {
+        int n = size();
+        int m = sorted.length;
+        if ((long)m * levels * 8 < n) {
+            for (Node node: sorted)
+                add(node);
+            return;
+        }
+        
+        Node[] merged = new Node[n + m];
+        int i = 0;
+        int j = 0;
+        for (Page leaf = head; leaf != null; leaf = leaf.next) {
+            for (int k = 0; k < leaf.count; k++) {
+                while (j < m && sorted[j].key.compareTo(leaf.keys[k]) < 0)
+                    merged[i++] = sorted[j++];
+                merged[i++] = leaf.values[k];
+            }
+        }
+        while (j < m)
+            merged[i++] = sorted[j++];
+        bulkLoad(merged, true);
+    }
+    
+    /**
+     * Every node is in a leaf, so all three orders are the key order of a leaf scan.
+     */
+    public void preOrderTraverse(Consumer<Node> consumer) {
+        inOrderTraverse(consumer);
+    }
+    
+    public void inOrderTraverse(Consumer<Node> consumer) {
+        for (Page leaf = head; leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.count; i++)
+                consumer.accept(leaf.values[i]);
+        }
+    }
+    
+    public void postOrderTraverse(Consumer<Node> consumer) {
+        inOrderTraverse(consumer);
+    }
+    
+    public Node find(String key) {
+        Node node = ceiling(key);
+        return node != null && node.key.equals(key) ? node : null;
+    }
+    
+    public Node minimum() {
+        return head.count == 0 ? null : head.values[0];
+    }
+    
+    public Node maximum() {
+        return tail.count == 0 ? null : tail.values[tail.count - 1];
     }
     
-    private int maxHeightFrom(Node node) {
+    public Node successor(Node node) {
+        BPlusTreeCursor cursor = locate(node);
+        if (!cursor.valid())
+            return null;
+        cursor.next();
+        return cursor.current();
+    }
+    
+    public Node predecessor(Node node) {
+        BPlusTreeCursor cursor = locate(node);
+        if (!cursor.valid())
+            return null;
+        cursor.previous();
+        return cursor.current();
+    }
+    
+    /**
+     * A cursor on this very node, invalid if the node is not in the tree.
+     */
+    private BPlusTreeCursor locate(Node node) {
+        BPlusTreeCursor cursor = new BPlusTreeCursor(this);
         if (node == null)
-            return 0;
-           
-        int leftHeight = 0;
-        int rightHeight = 0;
+            return cursor;
+        for (cursor.seekCeiling(node.key); cursor.valid() && cursor.current().key.equals(node.key); cursor.next()) {
+            if (cursor.current() == node)
+                return cursor;
+        }
+        cursor.leaf = null;
+        return cursor;
+    }
+    
+    public int size() {
+        return total(root);
+    }
+    
+    public Node select(int index) {
+        if (index < 0 || index >= size())
+            return null;
         
-        if (node.left != null)
-            leftHeight = 1 + maxHeightFrom(node.left);
-           
-        if (node.right != null)
-            rightHeight = 1 + maxHeightFrom(node.right);
+        // skip whole children by their counts
+        Page page = root;
+        while (!page.leaf) {
+            int i = 0;
+            while (index >= page.counts[i]) {
+                index -= page.counts[i];
+                i++;
+            }
+            page = page.children[i];
+        }
+        return page.values[index];
+    }
+    
+    public int rank(String key) {
+        return countBelow(key, false);
+    }
+    
+    public int countInRange(String low, String high) {
+        if (low.compareTo(high) > 0)
+            return 0;
+        return countBelow(high, true) - countBelow(low, false);
+    }
+    
+    /**
+     * Keys smaller than key, or also equal to it when inclusive.
+     */
+    private int countBelow(String key, boolean inclusive) {
+        int count = 0;
+        Page page = root;
+        while (!page.leaf) {
+            int child = inclusive ? upperBound(page.keys, page.count - 1, key) : lowerBound(page.keys, page.count - 1, key);
+            for (int i = 0; i < child; i++)
+                count += page.counts[i];
+            page = page.children[child];
+        }
+        return count + (inclusive ? upperBound(page.keys, page.count, key) : lowerBound(page.keys, page.count, key));
+    }
+    
+    public Node ceiling(String key) {
+        BPlusTreeCursor cursor = new BPlusTreeCursor(this);
+        return cursor.seekCeiling(key) ? cursor.current() : null;
+    }
+    
+    public Node floor(String key) {
+        BPlusTreeCursor cursor = new BPlusTreeCursor(this);
+        return cursor.seekFloor(key) ? cursor.current() : null;
+    }
+    
+    public TreeCursor cursor() {
+        return new BPlusTreeCursor(this);
+    }
+    
+    public Stream<Node> range(String low, String high) {
+        TreeCursor cursor = cursor();
+        cursor.seekCeiling(low);
+        return TreeCursorImpl.stream(cursor, high);
+    }
+    
+    public void print() {
+        printFrom(root, "");
+    }
+    
+    private void printFrom(Page page, String prefix) {
+        if (page.leaf) {
+            System.out.println(prefix + "\"" + String.join("\", \"", Arrays.asList(page.keys).subList(0, page.count)) + "\"");
+            return;
+        }
+        System.out.println(prefix + "[" + String.join(" | ", Arrays.asList(page.keys).subList(0, page.count - 1)) + "]");
+        for (int i = 0; i < page.count; i++)
+            printFrom(page.children[i], prefix + " . ");
+    }
+    
+    /**
+     * Leaves as (a, b), inner pages as [child separator child ...].
+     */
+    public String debugString() {
+        return size() == 0 ? "" : debugStringFrom(root);
+    }
+    
+    private String debugStringFrom(Page page) {
+        if (page.leaf)
+            return "(" + String.join(", ", Arrays.asList(page.keys).subList(0, page.count)) + ")";
+        StringBuilder s = new StringBuilder("[");
+        for (int i = 0; i < page.count; i++) {
+            if (i > 0)
+                s.append(" ").append(page.keys[i - 1]).append(" ");
+            s.append(debugStringFrom(page.children[i]));
+        }
+        return s.append("]").toString();
+    }
+    
+    public int maxHeight() {
+        return levels - 1;
+    }
+    
+    /**
+     * Checks key order, separators, counts, page fill, depth and leaf links, throwing on the
+     * first violation. Returns the number of keys.
+     */
+    public int validate() {
+        int size = validateFrom(root, null, null, 1);
+        int linked = 0;
+        Page previous = null;
+        for (Page leaf = head; leaf != null; leaf = leaf.next) {
+            if (leaf.previous != previous)
+                throw new RuntimeException("Broken leaf links");
+            if (previous != null && previous.count > 0 && leaf.keys[0].compareTo(previous.keys[previous.count - 1]) < 0)
+                throw new RuntimeException("Leaves out of order at \"" + leaf.keys[0] + "\"");
+            linked += leaf.count;
+            previous = leaf;
+        }
+        if (previous != tail || linked != size)
+            throw new RuntimeException("Leaf chain holds " + linked + " keys, the tree " + size);
+        return size;
+    }
+    
+    private int validateFrom(Page page, String low, String high, int depth) {
+        if (page != root && page.count < fanout / 2)
+            throw new RuntimeException("Underfull page with " + page.count + " entries");
+        int keys = page.leaf ? page.count : page.count - 1;
+        for (int i = 0; i < keys; i++) {
+            if ((i > 0 && page.keys[i].compareTo(page.keys[i - 1]) < 0)
+                    || (low != null && page.keys[i].compareTo(low) < 0) || (high != null && page.keys[i].compareTo(high) > 0))
+                throw new RuntimeException("Key \"" + page.keys[i] + "\" is out of order");
+        }
+        if (page.leaf) {
+            if (depth != levels)
+                throw new RuntimeException("Leaf at depth " + depth + " of " + levels);
+            return page.count;
+        }
         
-        return Math.max(leftHeight, rightHeight);
+        int size = 0;
+        for (int i = 0; i < page.count; i++) {
+            int childSize = validateFrom(page.children[i], i == 0 ? low : page.keys[i - 1], i == page.count - 1 ? high : page.keys[i], depth + 1);
+            if (childSize != page.counts[i])
+                throw new RuntimeException("Child count " + page.counts[i] + " but " + childSize + " keys under it");
+            size += childSize;
+        }
+        return size;
+    }
+}
+
+/**
+ * A position in the leaves of a B+-tree. Steps stay within a leaf's arrays most of the time,
+ * and batches are copied out a leaf at a time.
+ */
+class BPlusTreeCursor implements TreeCursor {
+    final BPlusTreeImpl tree;
+    BPlusTreeImpl.Page leaf;
+    int index;
+    
+    BPlusTreeCursor(BPlusTreeImpl tree) {
+        this.tree = tree;
+    }
+    
+    public boolean seekFirst() {
+        leaf = tree.head;
+        index = 0;
+        return settleForward();
+    }
+    
+    public boolean seekLast() {
+        leaf = tree.tail;
+        index = leaf.count - 1;
+        return settleBackward();
+    }
+    
+    public boolean seekCeiling(String key) {
+        BPlusTreeImpl.Page page = tree.root;
+        while (!page.leaf)
+            page = page.children[lowerBound(page.keys, page.count - 1, key, false)];
+        leaf = page;
+        index = lowerBound(page.keys, page.count, key, false);
+        return settleForward();
+    }
+    
+    public boolean seekFloor(String key) {
+        BPlusTreeImpl.Page page = tree.root;
+        while (!page.leaf)
+            page = page.children[lowerBound(page.keys, page.count - 1, key, true)];
+        leaf = page;
+        index = lowerBound(page.keys, page.count, key, true) - 1;
+        return settleBackward();
+    }
+    
+    /**
+     * First index with a key above (or when inclusive, at least) key.
+     */
+    private static int lowerBound(String[] keys, int length, String key, boolean inclusive) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = keys[mid].compareTo(key);
+            if (cmp < 0 || (cmp == 0 && inclusive))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    private boolean settleForward() {
+        while (leaf != null && index >= leaf.count) {
+            leaf = leaf.next;
+            index = 0;
+        }
+        return leaf != null;
+    }
+    
+    private boolean settleBackward() {
+        while (leaf != null && index < 0) {
+            leaf = leaf.previous;
+            index = leaf == null ? 0 : leaf.count - 1;
+        }
+        return leaf != null;
+    }
+    
+    public boolean valid() {
+        return leaf != null;
+    }
+    
+    public Node current() {
+        return leaf == null ? null : leaf.values[index];
+    }
+    
+    public void next() {
+        index++;
+        settleForward();
+    }
+    
+    public void previous() {
+        index--;
+        settleBackward();
+    }
+    
+    public int next(Node[] batch) {
+        int count = 0;
+        while (leaf != null && count < batch.length) {
+            int copied = Math.min(batch.length - count, leaf.count - index);
+            System.arraycopy(leaf.values, index, batch, count, copied);
+            count += copied;
+            index += copied;
+            settleForward();
+        }
+        return count;
     }
 }
 
@@ -291,7 +1618,12 @@ class TreeBuilder {
     Random rand = new Random();
     
     public Tree buildLargeRandomTree(int size) {
-        return null;
+        Node[] nodes = new Node[size];
+        for (int i = 0; i < size; i++)
+            nodes[i] = randomNode();
+        Tree tree = new RedBlackTreeImpl();
+        tree.bulkLoad(nodes, false);
+        return tree;
     }
     
     public String randomString(int maxLen) {
@@ -313,12 +1645,168 @@ class TreeBuilder {
     }
     
     public Tree randomTree(int nodes) {
-        Tree tree = new TreeImpl();
+        return fill(new TreeImpl(), nodes);
+    }
+    
+    public Tree fill(Tree tree, int nodes) {
         while (nodes-- > 0) {
             tree.add(new Node(randomString(10)));
         }
         return tree;
     }
+    
+    /**
+     * Keys "k0000000", "k0000001", ... added in increasing order, the worst case for a plain BST.
+     */
+    public Tree sortedTree(Tree tree, int nodes) {
+        for (int i = 0; i < nodes; i++)
+            tree.add(new Node(String.format("k%07d", i)));
+        return tree;
+    }
+}
+
+/**
+ * Compares lookups, in-order scans and heap per key of the red-black and B+-trees against
+ * java.util.TreeMap on the same keys, and bulk loading against adding one by one,
+ * run with "java trees.java bench [keys]".
+ * Each measurement is warmed up first, and lookups and scans are checked to agree
+ * before any timing is printed.
+ */
+class TreeBenchmark {
+    static final int WARMUP_ROUNDS = 3;
+    static final int MEASURED_ROUNDS = 5;
+    
+    public void run(int size) {
+        TreeBuilder builder = new TreeBuilder();
+        builder.rand = new Random(42);
+        String[] keys = new String[size];
+        TreeMap<String, Node> map = new TreeMap<String, Node>();
+        RedBlackTreeImpl tree = new RedBlackTreeImpl();
+        for (int i = 0; i < size; i++) {
+            Node node = new Node(builder.randomString(12));
+            keys[i] = node.key;
+            if (map.putIfAbsent(node.key, node) == null)
+                tree.add(node);
+        }
+        BPlusTreeImpl pages = new BPlusTreeImpl();
+        pages.bulkLoad(map.values().toArray(new Node[0]), true);
+        List<String> lookups = new ArrayList<String>(Arrays.asList(keys));
+        Collections.shuffle(lookups, new Random(7));
+        String[] queries = lookups.toArray(new String[0]);
+        
+        for (String key: queries) {
+            if (tree.find(key) != map.get(key) || pages.find(key) != map.get(key))
+                throw new RuntimeException("Lookups disagree on \"" + key + "\"");
+        }
+        Iterator<String> expected = map.keySet().iterator();
+        tree.inOrderTraverse(n -> {
+            if (!n.key.equals(expected.next()))
+                throw new RuntimeException("Scans disagree at \"" + n.key + "\"");
+        });
+        
+        measure("find", "RedBlackTreeImpl", size, () -> {
+            int found = 0;
+            for (String key: queries)
+                found += tree.find(key) != null ? 1 : 0;
+            return found;
+        });
+        measure("find", "BPlusTreeImpl", size, () -> {
+            int found = 0;
+            for (String key: queries)
+                found += pages.find(key) != null ? 1 : 0;
+            return found;
+        });
+        measure("find", "TreeMap", size, () -> {
+            int found = 0;
+            for (String key: queries)
+                found += map.get(key) != null ? 1 : 0;
+            return found;
+        });
+        measure("inOrderScan", "RedBlackTreeImpl", size, () -> {
+            final int[] seen = new int[1];
+            tree.inOrderTraverse(n -> seen[0]++);
+            return seen[0];
+        });
+        measure("inOrderScan", "BPlusTreeImpl", size, () -> {
+            final int[] seen = new int[1];
+            pages.inOrderTraverse(n -> seen[0]++);
+            return seen[0];
+        });
+        measure("inOrderScan", "TreeMap", size, () -> {
+            int seen = 0;
+            for (Node n: map.values())
+                seen += n != null ? 1 : 0;
+            return seen;
+        });
+        
+        heapPerKey("RedBlackTreeImpl", keys, () -> new RedBlackTreeImpl());
+        heapPerKey("BPlusTreeImpl", keys, () -> new BPlusTreeImpl());
+        
+        // building relinks the nodes, so these run on their own copies
+        Node[] shuffled = new Node[queries.length];
+        for (int i = 0; i < queries.length; i++)
+            shuffled[i] = new Node(queries[i]);
+        Node[] sorted = shuffled.clone();
+        Arrays.sort(sorted, (a, b) -> a.key.compareTo(b.key));
+        measure("addOneByOne", "RedBlackTreeImpl", size, () -> {
+            RedBlackTreeImpl built = new RedBlackTreeImpl();
+            for (Node node: shuffled)
+                built.add(node);
+            return shuffled.length;
+        });
+        measure("bulkLoadUnsorted", "RedBlackTreeImpl", size, () -> {
+            new RedBlackTreeImpl().bulkLoad(shuffled, false);
+            return shuffled.length;
+        });
+        measure("bulkLoadSorted", "RedBlackTreeImpl", size, () -> {
+            new RedBlackTreeImpl().bulkLoad(sorted, true);
+            return sorted.length;
+        });
+    }
+    
+    /**
+     * Heap taken by a tree of the keys, nodes included, measured around full collections.
+     */
+    void heapPerKey(String structure, String[] keys, Supplier<Tree> empty) {
+        Node[] nodes = new Node[keys.length];
+        System.gc();
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        for (int i = 0; i < keys.length; i++)
+            nodes[i] = new Node(keys[i]);
+        Tree tree = empty.get();
+        for (Node node: nodes)
+            tree.add(node);
+        Arrays.fill(nodes, null);
+        System.gc();
+        System.gc();
+        long bytes = runtime.totalMemory() - runtime.freeMemory() - before;
+        
+        String result = String.format(Locale.ROOT, "{\"operation\":\"heapPerKey\",\"structure\":\"%s\",\"keys\":%d,\"bytesPerKey\":%.1f}",
+            structure, tree.size(), (double)bytes / keys.length);
+        System.out.println(result);
+    }
+    
+    /**
+     * Times the round, which returns how many operations it did.
+     */
+    void measure(String operation, String structure, int size, IntSupplier round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            round.getAsInt();
+        
+        long operations = 0;
+        long nanos = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            operations += round.getAsInt();
+            nanos += System.nanoTime() - start;
+        }
+        
+        String result = String.format(Locale.ROOT, "{\"operation\":\"%s\",\"structure\":\"%s\",\"keys\":%d,\"nanosPerOp\":%.1f}",
+            operation, structure, size, (double)nanos / operations);
+        System.out.println(result);
+    }
 }
 
 class TreeDemo {
@@ -346,8 +1834,11 @@ class TreeDemo {
     private void demoHeight(int nodes) {
         TreeBuilder builder = new TreeBuilder();
         Tree tree = builder.randomTree(nodes);
+        Tree balanced = builder.fill(new RedBlackTreeImpl(), nodes);
+        Tree sorted = builder.sortedTree(new RedBlackTreeImpl(), nodes);
         System.out.println("A tree of " + nodes + " nodes has a max height of " + tree.maxHeight() + 
-                ", ideally log2(" + nodes + ") is " + ((int)(Math.log(nodes) / Math.log(2))));
+                ", ideally log2(" + nodes + ") is " + ((int)(Math.log(nodes) / Math.log(2))) +
+                ", red-black " + balanced.maxHeight() + ", red-black from sorted keys " + sorted.maxHeight());
     }
     
     public void runTests() {
@@ -394,11 +1885,11 @@ class TreeDemo {
         
         steps.setLength(0);
         tree.inOrderTraverse(n -> steps.append(n.key));
-        assertEquals("abdc", steps.toString());
+        assertEquals("abcd", steps.toString());
         
         steps.setLength(0);
         tree.postOrderTraverse(n -> steps.append(n.key));
-        assertEquals("adcb", steps.toString());
+        assertEquals("acdb", steps.toString());
         
         Node m;
         
@@ -426,6 +1917,261 @@ class TreeDemo {
         m = tree.predecessor(m);
         assertEquals("a", m.key);
         
+        assertEquals("c", tree.find("c").key);
+        assertEquals("a", tree.find("a").key);
+        assertEquals(true, tree.find("e") == null);
+        assertEquals(3, tree.maxHeight() + 1);
+        
+        // a degenerate tree far deeper than the stack would allow recursion on
+        TreeImpl deep = new TreeImpl();
+        Node last = null;
+        for (int i = 0; i < 200000; i++) {
+            Node link = new Node(String.format("k%07d", i));
+            if (last == null) {
+                deep.root = link;
+            } else {
+                last.right = link;
+                link.parent = last;
+            }
+            last = link;
+        }
+        assertEquals(199999, deep.maxHeight());
+        assertEquals("k0123456", deep.find("k0123456").key);
+        final int[] counted = new int[3];
+        deep.preOrderTraverse(n -> counted[0]++);
+        deep.inOrderTraverse(n -> counted[1]++);
+        deep.postOrderTraverse(n -> counted[2]++);
+        assertEquals(600000, counted[0] + counted[1] + counted[2]);
+        assertEquals(true, deep.debugString().startsWith("(k0000000, R(k0000001, R(k0000002"));
+        
+        // in-order scans and lookups agree with java.util.TreeMap
+        TreeBuilder random = new TreeBuilder();
+        random.rand = new Random(9);
+        TreeMap<String, Node> reference = new TreeMap<String, Node>();
+        RedBlackTreeImpl checked = new RedBlackTreeImpl();
+        for (int i = 0; i < 5000; i++) {
+            Node n = new Node(random.randomString(6));
+            if (reference.containsKey(n.key))
+                continue;
+            reference.put(n.key, n);
+            checked.add(n);
+        }
+        Iterator<String> expectedKeys = reference.keySet().iterator();
+        checked.inOrderTraverse(n -> assertEquals(expectedKeys.next(), n.key));
+        for (String key: reference.keySet())
+            assertEquals(true, checked.find(key) == reference.get(key));
+        assertEquals(true, checked.find("not a key") == null);
+        
+        // red-black trees rebalance on add and remove
+        RedBlackTreeImpl rb = new RedBlackTreeImpl();
+        rb.add(new Node("a"));
+        rb.add(new Node("b"));
+        rb.add(new Node("c"));
+        assertEquals("(b, L(a), R(c))", rb.debugString());
+        rb.add(new Node("d"));
+        rb.add(new Node("e"));
+        assertEquals("(b, L(a), R(d, L(c), R(e)))", rb.debugString());
+        assertEquals(3, rb.validate());
+        
+        rb = new RedBlackTreeImpl();
+        TreeBuilder builder = new TreeBuilder();
+        builder.sortedTree(rb, 10000);
+        rb.validate();
+        assertEquals(true, rb.maxHeight() < 2 * 14);
+        List<Node> all = new ArrayList<Node>();
+        rb.inOrderTraverse(all::add);
+        Collections.shuffle(all, new Random(3));
+        for (int i = 0; i < all.size(); i++) {
+            rb.remove(all.get(i));
+            if (i % 1000 == 0)
+                rb.validate();
+        }
+        assertEquals("", rb.debugString());
+        
+        rb = new RedBlackTreeImpl();
+        builder.rand = new Random(5);
+        builder.fill(rb, 2000);
+        all.clear();
+        rb.inOrderTraverse(all::add);
+        for (int i = 0; i < all.size(); i += 2)
+            rb.remove(all.get(i));
+        rb.validate();
+        assertEquals(true, rb.maxHeight() <= 2 * 10);
+        
+        // order statistics, kept up to date through adds, removes and rotations
+        assertEquals(4, tree.size());
+        assertEquals("c", tree.select(2).key);
+        assertEquals(true, tree.select(4) == null);
+        assertEquals(2, tree.rank("c"));
+        assertEquals(3, tree.rank("cc"));
+        assertEquals(2, tree.countInRange("b", "c"));
+        assertEquals(0, tree.countInRange("d", "a"));
+        
+        RedBlackTreeImpl ranked = new RedBlackTreeImpl();
+        List<String> sortedKeys = new ArrayList<String>();
+        TreeBuilder keys = new TreeBuilder();
+        keys.rand = new Random(13);
+        List<Node> added = new ArrayList<Node>();
+        for (int i = 0; i < 3000; i++) {
+            Node n = new Node(keys.randomString(5));
+            added.add(n);
+            ranked.add(n);
+        }
+        for (int i = 0; i < added.size(); i += 3)
+            ranked.remove(added.get(i));
+        ranked.validate();
+        ranked.inOrderTraverse(n -> sortedKeys.add(n.key));
+        assertEquals(sortedKeys.size(), ranked.size());
+        for (int i = 0; i < sortedKeys.size(); i += 7) {
+            assertEquals(sortedKeys.get(i), ranked.select(i).key);
+            assertEquals(firstIndexOf(sortedKeys, sortedKeys.get(i)), ranked.rank(sortedKeys.get(i)));
+        }
+        String low = sortedKeys.get(100);
+        String high = sortedKeys.get(900);
+        assertEquals((int)sortedKeys.stream().filter(k -> k.compareTo(low) >= 0 && k.compareTo(high) <= 0).count(), ranked.countInRange(low, high));
+        
+        // floor and ceiling seeks, cursors and range streams
+        assertEquals("c", tree.ceiling("bb").key);
+        assertEquals("b", tree.floor("bb").key);
+        assertEquals("b", tree.ceiling("b").key);
+        assertEquals(true, tree.ceiling("e") == null);
+        assertEquals(true, tree.floor("0") == null);
+        TreeCursor cursor = tree.cursor();
+        assertEquals(true, cursor.seekFloor("cc"));
+        steps.setLength(0);
+        for (; cursor.valid(); cursor.previous())
+            steps.append(cursor.current().key);
+        assertEquals("cba", steps.toString());
+        assertEquals(false, cursor.seekCeiling("z"));
+        assertEquals("b,c", tree.range("aa", "c").map(n -> n.key).collect(Collectors.joining(",")));
+        assertEquals("", tree.range("e", "z").map(n -> n.key).collect(Collectors.joining(",")));
+        
+        cursor = ranked.cursor();
+        cursor.seekCeiling(low);
+        Node[] batch = new Node[64];
+        List<String> batched = new ArrayList<String>();
+        int read;
+        while ((read = cursor.next(batch)) > 0) {
+            for (int i = 0; i < read && batch[i].key.compareTo(high) <= 0; i++)
+                batched.add(batch[i].key);
+            if (batch[read - 1].key.compareTo(high) > 0)
+                break;
+        }
+        assertEquals(ranked.countInRange(low, high), batched.size());
+        assertEquals(String.join(",", batched), ranked.range(low, high).map(n -> n.key).collect(Collectors.joining(",")));
+        
+        // bulk loading and merging build balanced, valid red-black trees
+        for (int size: new int[] { 0, 1, 2, 3, 7, 8, 1000, 1023, 1024 }) {
+            RedBlackTreeImpl loaded = new RedBlackTreeImpl();
+            Node[] nodes = new Node[size];
+            for (int i = 0; i < size; i++)
+                nodes[i] = new Node(String.format("k%07d", i));
+            loaded.bulkLoad(nodes, true);
+            loaded.validate();
+            assertEquals(size, loaded.size());
+            assertEquals(size == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(size), loaded.maxHeight());
+        }
+        RedBlackTreeImpl large = (RedBlackTreeImpl)keys.buildLargeRandomTree(100000);
+        large.validate();
+        assertEquals(100000, large.size());
+        assertEquals(16, large.maxHeight());
+        
+        RedBlackTreeImpl mergedTree = new RedBlackTreeImpl();
+        mergedTree.bulkLoad(new Node[] { new Node("b"), new Node("d"), new Node("f") }, true);
+        mergedTree.merge(new Node[] { new Node("a"), new Node("c"), new Node("e"), new Node("g") });
+        assertEquals("(d, L(b, L(a), R(c)), R(f, L(e), R(g)))", mergedTree.debugString());
+        mergedTree.validate();
+        Node[] few = { new Node("CA"), new Node("CB") };
+        large.merge(few);
+        large.validate();
+        assertEquals(100002, large.size());
+        assertEquals(true, large.find("CB") == few[1]);
+        mergedTree.merge(new Node[0]);
+        mergedTree.remove(mergedTree.find("d"));
+        mergedTree.validate();
+        assertEquals("a,b,c,e,f,g", mergedTree.range("a", "z").map(n -> n.key).collect(Collectors.joining(",")));
+        
+        // B+-tree, small fanout so that pages split, merge and borrow often
+        BPlusTreeImpl bplus = new BPlusTreeImpl(4);
+        for (String key: new String[] { "d", "b", "f", "a", "c", "e", "g" })
+            bplus.add(new Node(key));
+        assertEquals("[(a, b) c (c, d) e (e, f, g)]", bplus.debugString());
+        assertEquals(1, bplus.maxHeight());
+        assertEquals("c", bplus.find("c").key);
+        assertEquals(true, bplus.find("cc") == null);
+        assertEquals("d", bplus.successor(bplus.find("c")).key);
+        assertEquals("b", bplus.predecessor(bplus.find("c")).key);
+        assertEquals(true, bplus.predecessor(bplus.minimum()) == null);
+        assertEquals("e", bplus.select(4).key);
+        assertEquals(3, bplus.rank("cc"));
+        assertEquals(3, bplus.countInRange("b", "d"));
+        assertEquals("d", bplus.ceiling("cc").key);
+        assertEquals("c", bplus.floor("cc").key);
+        assertEquals("b,c,d", bplus.range("aa", "d").map(n -> n.key).collect(Collectors.joining(",")));
+        bplus.remove(bplus.find("a"));
+        bplus.remove(bplus.find("b"));
+        assertEquals("[(c, d) e (e, f, g)]", bplus.debugString());
+        bplus.validate();
+        
+        List<Node> live = new ArrayList<Node>();
+        TreeBuilder churn = new TreeBuilder();
+        churn.rand = new Random(17);
+        bplus.clear();
+        for (int round = 0; round < 20000; round++) {
+            if (live.isEmpty() || churn.randomInt(3) > 0) {
+                // short keys, so that there are plenty of duplicates
+                Node n = new Node(churn.randomString(2));
+                live.add(n);
+                bplus.add(n);
+            } else {
+                bplus.remove(live.remove(churn.randomInt(live.size())));
+            }
+            if (round % 2000 == 0)
+                bplus.validate();
+        }
+        assertEquals(live.size(), bplus.validate());
+        live.sort((x, y) -> x.key.compareTo(y.key));
+        List<String> scanned = new ArrayList<String>();
+        bplus.inOrderTraverse(n -> scanned.add(n.key));
+        assertEquals(String.join(",", live.stream().map(n -> n.key).collect(Collectors.toList())), String.join(",", scanned));
+        for (int i = 0; i < live.size(); i += 37) {
+            assertEquals(scanned.get(i), bplus.select(i).key);
+            assertEquals(firstIndexOf(scanned, scanned.get(i)), bplus.rank(scanned.get(i)));
+        }
+        TreeCursor leaves = bplus.cursor();
+        assertEquals(true, leaves.seekLast());
+        int backwards = 0;
+        for (; leaves.valid(); leaves.previous())
+            backwards++;
+        assertEquals(live.size(), backwards);
+        leaves.seekFirst();
+        Node[] chunk = new Node[100];
+        int chunked = 0;
+        while ((read = leaves.next(chunk)) > 0)
+            chunked += read;
+        assertEquals(live.size(), chunked);
+        for (Node n: live)
+            bplus.remove(n);
+        assertEquals(0, bplus.validate());
+        assertEquals("", bplus.debugString());
+        assertEquals(true, bplus.pooledPages() > 0);
+        
+        BPlusTreeImpl loadedPages = new BPlusTreeImpl(8);
+        Node[] loadNodes = new Node[1000];
+        for (int i = 0; i < loadNodes.length; i++)
+            loadNodes[i] = new Node(String.format("k%07d", loadNodes.length - i));
+        loadedPages.bulkLoad(loadNodes, false);
+        assertEquals(1000, loadedPages.validate());
+        assertEquals("k0000001", loadedPages.minimum().key);
+        loadedPages.merge(new Node[] { new Node("k0000000"), new Node("k0000500") });
+        assertEquals(1002, loadedPages.validate());
+        Node[] evens = new Node[500];
+        for (int i = 0; i < evens.length; i++)
+            evens[i] = new Node(String.format("k%07d", 2 * i) + "x");
+        loadedPages.merge(evens);
+        assertEquals(1502, loadedPages.validate());
+        assertEquals(1502, (int)loadedPages.range("a", "z").count());
+        
         System.out.println("Tests finished successfully");
     }
     private void pause() {
@@ -447,6 +2193,18 @@ class TreeDemo {
             throw new RuntimeException("Assertion failed, was expecting \"" + expected + "\", got \"" + value + "\" instead");
     }
     
+    private int firstIndexOf(List<String> sorted, String key) {
+        int index = 0;
+        while (sorted.get(index).compareTo(key) < 0)
+            index++;
+        return index;
+    }
+    
+    private void assertEquals(boolean expected, boolean value) {
+        if (value != expected)
+            throw new RuntimeException("Assertion failed, was expecting " + expected + ", got " + value + " instead");
+    }
+    
     private void assertEquals(int expected, int value) {
         if (value != expected)
             throw new RuntimeException("Assertion failed, was expecting " + expected + ", got " + value + " instead");